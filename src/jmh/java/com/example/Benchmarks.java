@@ -0,0 +1,90 @@
+/*
+ * Copyright 2019 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/** Shared setup of the benchmarks. */
+final class Benchmarks {
+
+  private Benchmarks() {}
+
+  /**
+   * Selects the in-memory store, turns the SYNC cache off and drops state reports instead of
+   * sending them. Must run before {@link MyDataStore} or {@link MySmartHomeApp} is first used.
+   */
+  static void configure() {
+    System.setProperty("smarthome.store", "memory");
+    System.setProperty("smarthome.cache.sync.size", "0");
+    System.setProperty("smarthome.reportState.maxPending", "0");
+  }
+
+  /** Adds a user with the given fake access token and {@code count} lights; returns their ids. */
+  static List<String> seed(MyDataStore database, String userId, String token, int count)
+      throws Exception {
+    Map<String, Object> user = new HashMap<>();
+    user.put("fakeAccessToken", token);
+    database.addUser(userId, user);
+
+    List<String> deviceIds = new ArrayList<>();
+    for (int i = 0; i < count; i++) {
+      String deviceId = "light-" + i;
+      database.addDevice(userId, light(deviceId));
+      deviceIds.add(deviceId);
+    }
+    return deviceIds;
+  }
+
+  static Map<String, Object> light(String deviceId) {
+    Map<String, Object> color = new HashMap<>();
+    color.put("spectrumRgb", 16711680);
+    Map<String, Object> states = new HashMap<>();
+    states.put("online", true);
+    states.put("on", false);
+    states.put("brightness", 40);
+    states.put("color", color);
+
+    Map<String, Object> attributes = new HashMap<>();
+    attributes.put("colorModel", "rgb");
+
+    Map<String, Object> device = new HashMap<>();
+    device.put("deviceId", deviceId);
+    device.put("type", "action.devices.types.LIGHT");
+    device.put(
+        "traits",
+        Arrays.asList(
+            "action.devices.traits.OnOff",
+            "action.devices.traits.Brightness",
+            "action.devices.traits.ColorSetting"));
+    device.put("name", "Light " + deviceId);
+    device.put("defaultNames", Arrays.asList("Smart light"));
+    device.put("nicknames", Arrays.asList("lamp " + deviceId));
+    device.put("willReportState", true);
+    device.put("roomHint", "Living room");
+    device.put("manufacturer", "Example");
+    device.put("model", "L1");
+    device.put("hwVersion", "1.0");
+    device.put("swVersion", "1.0");
+    device.put("attributes", attributes);
+    device.put("states", states);
+    return device;
+  }
+}
@@ -0,0 +1,74 @@
+/*
+ * Copyright 2019 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example;
+
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.google.actions.api.smarthome.ExecuteRequest;
+import com.google.gson.Gson;
+
+/**
+ * {@link MyDataStore#execute} of common trait commands against the in-memory store: the
+ * precondition checks, handler lookup, state changes and the coalesced write.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ExecuteBenchmark {
+  private static final String USER_ID = "bench-execute-user";
+  private static final String DEVICE_ID = "light-0";
+
+  @Param({
+    "{\"command\":\"action.devices.commands.OnOff\",\"params\":{\"on\":true}}",
+    "{\"command\":\"action.devices.commands.BrightnessAbsolute\",\"params\":{\"brightness\":65}}",
+    "{\"command\":\"action.devices.commands.ColorAbsolute\","
+        + "\"params\":{\"color\":{\"spectrumRGB\":255}}}"
+  })
+  public String execution;
+
+  private MyDataStore database;
+  private ExecuteRequest.Inputs.Payload.Commands.Execution parsed;
+
+  @Setup
+  public void setUp() throws Exception {
+    Benchmarks.configure();
+    database = MyDataStore.getInstance();
+    Benchmarks.seed(database, USER_ID, "bench-execute-token", 1);
+    parsed = new Gson().fromJson(execution, ExecuteRequest.Inputs.Payload.Commands.Execution.class);
+  }
+
+  @Benchmark
+  public Map<String, Object> execute() throws Exception {
+    return database.execute(USER_ID, DEVICE_ID, parsed);
+  }
+}
@@ -0,0 +1,133 @@
+/*
+ * Copyright 2019 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonObject;
+
+/**
+ * SYNC, QUERY and EXECUTE requests of one user with {@code devices} lights, handled end to end by
+ * {@link MySmartHomeApp#handleRequest} against the in-memory store: request parsing, the intent
+ * handler and response serialization. The SYNC cache is off so every SYNC builds its devices, and
+ * state reports are dropped instead of being sent to HomeGraph.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class FulfillmentBenchmark {
+
+  @Param({"1", "50", "500"})
+  public int devices;
+
+  private MySmartHomeApp app;
+  private Map<String, String> headers;
+  private String syncRequest;
+  private String queryRequest;
+  private String executeRequest;
+
+  @Setup
+  public void setUp() throws Exception {
+    Benchmarks.configure();
+    String userId = "bench-user-" + devices;
+    String token = "bench-token-" + devices;
+    List<String> deviceIds = Benchmarks.seed(MyDataStore.getInstance(), userId, token, devices);
+    app = new MySmartHomeApp();
+    headers = new HashMap<>();
+    headers.put("authorization", "Bearer " + token);
+
+    syncRequest = request("action.devices.SYNC", null).toString();
+
+    JsonObject query = new JsonObject();
+    query.add("devices", ids(deviceIds));
+    queryRequest = request("action.devices.QUERY", query).toString();
+
+    JsonObject execution = new JsonObject();
+    execution.addProperty("command", "action.devices.commands.OnOff");
+    JsonObject params = new JsonObject();
+    params.addProperty("on", true);
+    execution.add("params", params);
+    JsonObject command = new JsonObject();
+    command.add("devices", ids(deviceIds));
+    JsonArray executions = new JsonArray();
+    executions.add(execution);
+    command.add("execution", executions);
+    JsonArray commands = new JsonArray();
+    commands.add(command);
+    JsonObject payload = new JsonObject();
+    payload.add("commands", commands);
+    executeRequest = request("action.devices.EXECUTE", payload).toString();
+  }
+
+  private static JsonArray ids(List<String> deviceIds) {
+    JsonArray devices = new JsonArray();
+    for (String id : deviceIds) {
+      JsonObject device = new JsonObject();
+      device.addProperty("id", id);
+      devices.add(device);
+    }
+    return devices;
+  }
+
+  private static JsonObject request(String intent, JsonObject payload) {
+    JsonObject input = new JsonObject();
+    input.addProperty("intent", intent);
+    if (payload != null) {
+      input.add("payload", payload);
+    }
+    JsonArray inputs = new JsonArray();
+    inputs.add(input);
+    JsonObject request = new JsonObject();
+    request.addProperty("requestId", "bench-request");
+    request.add("inputs", inputs);
+    return request;
+  }
+
+  @Benchmark
+  public String sync() throws Exception {
+    return app.handleRequest(syncRequest, headers).get();
+  }
+
+  @Benchmark
+  public String query() throws Exception {
+    return app.handleRequest(queryRequest, headers).get();
+  }
+
+  @Benchmark
+  public String execute() throws Exception {
+    return app.handleRequest(executeRequest, headers).get();
+  }
+}
@@ -0,0 +1,397 @@
+/*
+ * Copyright 2019 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonObject;
+
+/**
+ * Drives fulfillment with a mix of SYNC, QUERY and EXECUTE requests and device-side state updates,
+ * spread over many synthetic users, and prints throughput, latency percentiles and error rates per
+ * intent.
+ *
+ * <p>By default everything runs in-process. Fulfillment requests go through {@link
+ * MySmartHomeApp#handleRequest}, and updates take the path of {@link SmartHomeUpdateServlet}. Both
+ * run against the in-memory store, and HomeGraph is stubbed out. To load a local Tomcat instead,
+ * seed a file store, start the server on it and point the generator at it:
+ *
+ * <pre>
+ * mvn -Pbenchmarks test-compile exec:java -Dexec.classpathScope=test \
+ *     -Dexec.mainClass=com.example.LoadGenerator -Dexec.args="--seedFile=/tmp/load.jsonl"
+ * mvn tomcat7:run -Dsmarthome.store=file -Dsmarthome.store.file=/tmp/load.jsonl \
+ *     -Dsmarthome.homegraph.stub=true
+ * mvn -Pbenchmarks exec:java -Dexec.classpathScope=test \
+ *     -Dexec.mainClass=com.example.LoadGenerator \
+ *     -Dexec.args="--url=http://localhost:8080/evaristo-google-cloud"
+ * </pre>
+ *
+ * <p>Options, as {@code --name=value}: users (2000), devices per user (5), threads (32), seconds
+ * measured (30), warmupSeconds (5), and mix, the relative weights of each kind of request
+ * (sync=5,query=45,execute=35,update=15).
+ */
+public class LoadGenerator {
+
+  enum Intent {
+    SYNC,
+    QUERY,
+    EXECUTE,
+    UPDATE
+  }
+
+  /** Where requests are sent; each method returns whether the request succeeded. */
+  interface Target {
+    boolean fulfill(String token, String body) throws Exception;
+
+    boolean update(String userId, String deviceId, Map<String, Object> states) throws Exception;
+  }
+
+  private static final class Stats {
+    final LatencyHistogram latency = new LatencyHistogram();
+    final LongAdder errors = new LongAdder();
+  }
+
+  private final int users;
+  private final int devices;
+  private final int threads;
+  private final long seconds;
+  private final long warmupSeconds;
+  private final Map<Intent, Integer> mix;
+  private final Map<Intent, Stats> stats = new EnumMap<>(Intent.class);
+
+  LoadGenerator(
+      int users,
+      int devices,
+      int threads,
+      long seconds,
+      long warmupSeconds,
+      Map<Intent, Integer> mix) {
+    this.users = users;
+    this.devices = devices;
+    this.threads = threads;
+    this.seconds = seconds;
+    this.warmupSeconds = warmupSeconds;
+    this.mix = mix;
+    for (Intent intent : Intent.values()) {
+      stats.put(intent, new Stats());
+    }
+  }
+
+  public static void main(String[] args) throws Exception {
+    Map<String, String> options = new HashMap<>();
+    for (String arg : args) {
+      String[] option = arg.replaceFirst("^--", "").split("=", 2);
+      options.put(option[0], option.length > 1 ? option[1] : "true");
+    }
+    int users = Integer.parseInt(options.getOrDefault("users", "2000"));
+    int devices = Integer.parseInt(options.getOrDefault("devices", "5"));
+
+    if (options.containsKey("seedFile")) {
+      MyDataStore database =
+          new MyDataStore(new FileDeviceStore(Paths.get(options.get("seedFile"))));
+      seed(database, users, devices);
+      System.out.println("seeded " + users + " users into " + options.get("seedFile"));
+      return;
+    }
+
+    Target target;
+    if (options.containsKey("url")) {
+      target = new HttpTarget(options.get("url"));
+    } else {
+      System.setProperty("smarthome.store", "memory");
+      System.setProperty("smarthome.homegraph.stub", "true");
+      seed(MyDataStore.getInstance(), users, devices);
+      target = new InProcessTarget(new MySmartHomeApp(), MyDataStore.getInstance());
+    }
+
+    LoadGenerator generator =
+        new LoadGenerator(
+            users,
+            devices,
+            Integer.parseInt(options.getOrDefault("threads", "32")),
+            Long.parseLong(options.getOrDefault("seconds", "30")),
+            Long.parseLong(options.getOrDefault("warmupSeconds", "5")),
+            parseMix(options.getOrDefault("mix", "sync=5,query=45,execute=35,update=15")));
+    generator.run(target);
+    generator.print();
+  }
+
+  static Map<Intent, Integer> parseMix(String mix) {
+    Map<Intent, Integer> weights = new EnumMap<>(Intent.class);
+    for (String entry : mix.split(",")) {
+      String[] weight = entry.split("=");
+      weights.put(Intent.valueOf(weight[0].trim().toUpperCase()), Integer.parseInt(weight[1]));
+    }
+    return weights;
+  }
+
+  static String userId(int user) {
+    return "load-user-" + user;
+  }
+
+  static String token(int user) {
+    return "load-token-" + user;
+  }
+
+  static void seed(MyDataStore database, int users, int devices) throws Exception {
+    for (int user = 0; user < users; user++) {
+      Benchmarks.seed(database, userId(user), token(user), devices);
+    }
+  }
+
+  void run(Target target) throws InterruptedException {
+    long start = System.nanoTime();
+    long recordFrom = start + TimeUnit.SECONDS.toNanos(warmupSeconds);
+    long end = recordFrom + TimeUnit.SECONDS.toNanos(seconds);
+    List<Thread> workers = new ArrayList<>();
+    for (int i = 0; i < threads; i++) {
+      Thread worker = new Thread(() -> work(target, recordFrom, end), "load-" + (i + 1));
+      worker.start();
+      workers.add(worker);
+    }
+    for (Thread worker : workers) {
+      worker.join();
+    }
+  }
+
+  private void work(Target target, long recordFrom, long end) {
+    int totalWeight = 0;
+    for (int weight : mix.values()) {
+      totalWeight += weight;
+    }
+    ThreadLocalRandom random = ThreadLocalRandom.current();
+    long now;
+    while ((now = System.nanoTime()) < end) {
+      Intent intent = pick(random.nextInt(totalWeight));
+      int user = random.nextInt(users);
+      boolean ok;
+      try {
+        ok = send(target, intent, user, random);
+      } catch (Exception e) {
+        ok = false;
+      }
+      if (now >= recordFrom) {
+        Stats intentStats = stats.get(intent);
+        intentStats.latency.recordSince(now);
+        if (!ok) {
+          intentStats.errors.increment();
+        }
+      }
+    }
+  }
+
+  private Intent pick(int value) {
+    for (Map.Entry<Intent, Integer> weight : mix.entrySet()) {
+      value -= weight.getValue();
+      if (value < 0) {
+        return weight.getKey();
+      }
+    }
+    throw new IllegalStateException("empty mix");
+  }
+
+  private boolean send(Target target, Intent intent, int user, ThreadLocalRandom random)
+      throws Exception {
+    String deviceId = "light-" + random.nextInt(devices);
+    switch (intent) {
+      case SYNC:
+        return target.fulfill(token(user), request("action.devices.SYNC", null));
+      case QUERY:
+        JsonObject query = new JsonObject();
+        query.add("devices", ids(deviceId, "light-" + random.nextInt(devices)));
+        return target.fulfill(token(user), request("action.devices.QUERY", query));
+      case EXECUTE:
+        JsonObject params = new JsonObject();
+        params.addProperty("on", random.nextBoolean());
+        JsonObject execution = new JsonObject();
+        execution.addProperty("command", "action.devices.commands.OnOff");
+        execution.add("params", params);
+        JsonArray executions = new JsonArray();
+        executions.add(execution);
+        JsonObject command = new JsonObject();
+        command.add("devices", ids(deviceId));
+        command.add("execution", executions);
+        JsonArray commands = new JsonArray();
+        commands.add(command);
+        JsonObject payload = new JsonObject();
+        payload.add("commands", commands);
+        return target.fulfill(token(user), request("action.devices.EXECUTE", payload));
+      case UPDATE:
+        Map<String, Object> states = new HashMap<>();
+        states.put("brightness", random.nextInt(101));
+        return target.update(userId(user), deviceId, states);
+      default:
+        throw new IllegalArgumentException(intent.name());
+    }
+  }
+
+  private static JsonArray ids(String... deviceIds) {
+    JsonArray devices = new JsonArray();
+    for (String id : deviceIds) {
+      JsonObject device = new JsonObject();
+      device.addProperty("id", id);
+      devices.add(device);
+    }
+    return devices;
+  }
+
+  private static String request(String intent, JsonObject payload) {
+    JsonObject input = new JsonObject();
+    input.addProperty("intent", intent);
+    if (payload != null) {
+      input.add("payload", payload);
+    }
+    JsonArray inputs = new JsonArray();
+    inputs.add(input);
+    JsonObject request = new JsonObject();
+    request.addProperty("requestId", Long.toString(ThreadLocalRandom.current().nextLong()));
+    request.add("inputs", inputs);
+    return request.toString();
+  }
+
+  void print() {
+    System.out.printf(
+        "%-8s %10s %10s %9s %9s %9s %9s %8s%n",
+        "intent", "requests", "req/s", "p50 ms", "p90 ms", "p99 ms", "max ms", "errors");
+    for (Intent intent : Intent.values()) {
+      Stats intentStats = stats.get(intent);
+      LatencyHistogram latency = intentStats.latency;
+      long requests = latency.count();
+      System.out.printf(
+          "%-8s %10d %10.1f %9.2f %9.2f %9.2f %9.2f %7.2f%%%n",
+          intent,
+          requests,
+          requests / (double) seconds,
+          millis(latency.percentileNanos(0.5)),
+          millis(latency.percentileNanos(0.9)),
+          millis(latency.percentileNanos(0.99)),
+          millis(latency.maxNanos()),
+          requests > 0 ? 100.0 * intentStats.errors.sum() / requests : 0.0);
+    }
+  }
+
+  private static double millis(long nanos) {
+    return nanos / 1e6;
+  }
+
+  /** Calls the app and the update path directly, as the servlets would. */
+  static final class InProcessTarget implements Target {
+    private final MySmartHomeApp app;
+    private final MyDataStore database;
+
+    InProcessTarget(MySmartHomeApp app, MyDataStore database) {
+      this.app = app;
+      this.database = database;
+    }
+
+    @Override
+    public boolean fulfill(String token, String body) throws Exception {
+      Map<String, String> headers = new HashMap<>();
+      headers.put("authorization", "Bearer " + token);
+      String response = app.handleRequest(body, headers).get();
+      return response != null && !response.contains("\"errorCode\"");
+    }
+
+    @Override
+    public boolean update(String userId, String deviceId, Map<String, Object> states)
+        throws Exception {
+      Set<String> changed =
+          database.updateDevice(userId, deviceId, states, Collections.emptyMap());
+      if (changed.contains("states")) {
+        app.reportStates(userId, deviceId, states);
+      }
+      return true;
+    }
+  }
+
+  /** Posts to /smarthome and /smarthome/update of a running server. */
+  static final class HttpTarget implements Target {
+    private final String baseUrl;
+
+    HttpTarget(String baseUrl) {
+      this.baseUrl = baseUrl.replaceAll("/+$", "");
+    }
+
+    @Override
+    public boolean fulfill(String token, String body) throws IOException {
+      String response = post("/smarthome", "Bearer " + token, body);
+      return response != null && !response.contains("\"errorCode\"");
+    }
+
+    @Override
+    public boolean update(String userId, String deviceId, Map<String, Object> states)
+        throws IOException {
+      JsonObject body = new JsonObject();
+      body.addProperty("userId", userId);
+      body.addProperty("deviceId", deviceId);
+      JsonObject deviceStates = new JsonObject();
+      for (Map.Entry<String, Object> state : states.entrySet()) {
+        deviceStates.addProperty(state.getKey(), (Number) state.getValue());
+      }
+      body.add("states", deviceStates);
+      return post("/smarthome/update", null, body.toString()) != null;
+    }
+
+    /** Returns the response body, or null if the status was not 200. */
+    private String post(String path, String authorization, String body) throws IOException {
+      HttpURLConnection connection = (HttpURLConnection) new URL(baseUrl + path).openConnection();
+      connection.setRequestMethod("POST");
+      connection.setDoOutput(true);
+      connection.setRequestProperty("Content-Type", "application/json");
+      if (authorization != null) {
+        connection.setRequestProperty("authorization", authorization);
+      }
+      try (OutputStream out = connection.getOutputStream()) {
+        out.write(body.getBytes(StandardCharsets.UTF_8));
+      }
+      int status = connection.getResponseCode();
+      InputStream in = status < 400 ? connection.getInputStream() : connection.getErrorStream();
+      ByteArrayOutputStream response = new ByteArrayOutputStream();
+      if (in != null) {
+        try (InputStream stream = in) {
+          byte[] buffer = new byte[8192];
+          int read;
+          while ((read = stream.read(buffer)) != -1) {
+            response.write(buffer, 0, read);
+          }
+        }
+      }
+      if (status != HttpURLConnection.HTTP_OK) {
+        return null;
+      }
+      return new String(response.toByteArray(), StandardCharsets.UTF_8);
+    }
+  }
+}
@@ -0,0 +1,73 @@
+/*
+ * Copyright 2019 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.google.home.graph.v1.HomeGraphApiServiceProto;
+import com.google.protobuf.Struct;
+
+/**
+ * Building a ReportStateAndNotification request for a batch of {@code devices} devices, from
+ * their stored states to the finished proto.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ReportStateBenchmark {
+
+  @Param({"1", "50"})
+  public int devices;
+
+  private Map<String, Map<String, Object>> states;
+
+  @Setup
+  @SuppressWarnings("unchecked")
+  public void setUp() {
+    states = new LinkedHashMap<>();
+    for (int i = 0; i < devices; i++) {
+      String deviceId = "light-" + i;
+      states.put(deviceId, (Map<String, Object>) Benchmarks.light(deviceId).get("states"));
+    }
+  }
+
+  @Benchmark
+  public HomeGraphApiServiceProto.ReportStateAndNotificationRequest buildRequest() {
+    Map<String, Struct> devices = new LinkedHashMap<>();
+    for (Map.Entry<String, Map<String, Object>> device : states.entrySet()) {
+      devices.put(device.getKey(), ReportState.toStruct(device.getValue()));
+    }
+    return ReportState.buildRequest("bench-user", devices);
+  }
+}
@@ -0,0 +1,349 @@
+/*
+ * Copyright 2019 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.actions.api.smarthome.ExecuteRequest;
+import com.google.api.core.ApiFuture;
+
+/**
+ * Shared fulfillment logic for {@link DeviceStore} backends. Subclasses provide document reads and
+ * field-path writes; token resolution, state reads, device updates and command execution are
+ * implemented once here on top of them.
+ *
+ * <p>Token lookups go through a {@link TokenCache}, bounded by {@code smarthome.cache.tokens.size}
+ * with {@code smarthome.cache.tokens.ttlMs} for known and {@code
+ * smarthome.cache.tokens.negativeTtlMs} for unknown tokens.
+ *
+ * <p>Commands that read the device's states before writing, like volumeRelative or TimerAdjust,
+ * write conditionally on the device being unchanged since it was read. On a conflict the command
+ * is run again on a fresh read, up to {@code smarthome.execute.maxWriteAttempts} times in all.
+ * Commands that only set values from their parameters write unconditionally.
+ */
+public abstract class AbstractDeviceStore implements DeviceStore {
+
+  private static final Logger LOGGER = LoggerFactory.getLogger(MySmartHomeApp.class);
+
+  /** Value for {@link #updateFields} that removes the field from the document. */
+  static final Object DELETE = new Object();
+
+  private final TokenCache tokenCache =
+      new TokenCache(
+          Config.getInt("smarthome.cache.tokens.size", 100000),
+          Config.getLong("smarthome.cache.tokens.ttlMs", 300000),
+          Config.getLong("smarthome.cache.tokens.negativeTtlMs", 5000),
+          TimeUnit.MILLISECONDS);
+  private final int maxWriteAttempts = Config.getInt("smarthome.execute.maxWriteAttempts", 5);
+
+  private final LongAdder conditionalWrites = new LongAdder();
+  private final LongAdder writeConflicts = new LongAdder();
+  private final LongAdder writeConflictsExhausted = new LongAdder();
+
+  /** Returns a device document whose data the caller may mutate, or null if it does not exist. */
+  protected abstract DeviceDocument getDevice(String userId, String deviceId)
+      throws ExecutionException, InterruptedException;
+
+  /**
+   * Returns a device document if it can be read without a backend round trip, or null if it
+   * cannot or does not exist. Backends whose {@link #getDevice} makes a round trip override this.
+   */
+  protected DeviceDocument getLocalDevice(String userId, String deviceId)
+      throws ExecutionException, InterruptedException {
+    return getDevice(userId, deviceId);
+  }
+
+  /**
+   * Returns the existing devices among {@code deviceIds}, keyed by id. Backends with a round trip
+   * per read should override this with a batched read.
+   */
+  protected Map<String, DeviceDocument> getDevicesById(String userId, List<String> deviceIds)
+      throws ExecutionException, InterruptedException {
+    Map<String, DeviceDocument> found = new HashMap<>();
+    for (String deviceId : deviceIds) {
+      DeviceDocument device = getDevice(userId, deviceId);
+      if (device != null) {
+        found.put(deviceId, device);
+      }
+    }
+    return found;
+  }
+
+  /**
+   * Updates fields of an existing device document.
+   *
+   * @param fields Dotted field paths (e.g. "states.on") and their new values
+   */
+  protected abstract ApiFuture<?> updateFields(
+      String userId, String deviceId, Map<String, Object> fields);
+
+  /**
+   * Updates fields of an existing device document only if it is still at the version of {@code
+   * device}. The future yields false if it was changed since.
+   */
+  protected abstract ApiFuture<Boolean> updateFieldsIfUnchanged(
+      String userId, DeviceDocument device, Map<String, Object> fields);
+
+  /**
+   * Returns a device document with its version, read from the backend itself, or null if it does
+   * not exist. Backends whose {@link #getDevice} may serve unversioned copies override this.
+   */
+  protected DeviceDocument getDeviceForUpdate(String userId, String deviceId)
+      throws ExecutionException, InterruptedException {
+    return getDevice(userId, deviceId);
+  }
+
+  /** Returns the id of the user with the given fake access token, or null if there is none. */
+  protected abstract String findUserIdByAccessToken(String accessToken)
+      throws ExecutionException, InterruptedException;
+
+  protected ApiFuture<?> update(String userId, String deviceId, String field, Object value) {
+    Map<String, Object> fields = new HashMap<>();
+    fields.put(field, value);
+    return updateFields(userId, deviceId, fields);
+  }
+
+  TokenCache getTokenCache() {
+    return tokenCache;
+  }
+
+  /** Drops cached token resolutions that a change to this user document may have outdated. */
+  protected void invalidateUser(String userId, Map<String, Object> data) {
+    tokenCache.invalidateUser(userId);
+    if (data != null && data.get("fakeAccessToken") instanceof String) {
+      tokenCache.invalidate((String) data.get("fakeAccessToken"));
+    }
+  }
+
+  private static String accessToken(String token) {
+    if (token == null) {
+      token = "Bearer 123access";
+    }
+    return token.substring(7);
+  }
+
+  private DeviceDocument requireDevice(String userId, String deviceId)
+      throws ExecutionException, InterruptedException {
+    DeviceDocument device = getDevice(userId, deviceId);
+    if (device == null) {
+      throw new RuntimeException("deviceNotFound");
+    }
+    return device;
+  }
+
+  @Override
+  public String getUserId(String token) throws ExecutionException, InterruptedException {
+    String userId = tokenCache.get(accessToken(token), this::findUserIdByAccessToken);
+    if (userId == null) {
+      LOGGER.error("no user found!");
+      throw new IllegalStateException("no user found for token");
+    }
+    return userId;
+  }
+
+  @Override
+  public void invalidateToken(String token) {
+    tokenCache.invalidate(accessToken(token));
+  }
+
+  /**
+   * Writes every requested field in one update. The returned set leaves out fields that already
+   * held the requested value, compared with the device as read by {@link #getLocalDevice}, which
+   * for a cached device may miss another process's latest write. When the device is not at hand,
+   * no read is made and every requested field is reported as changed.
+   */
+  @Override
+  public Set<String> updateDevice(
+      String userId, String deviceId, Map<String, Object> states, Map<String, String> params)
+      throws ExecutionException, InterruptedException {
+    Map<String, Object> fields = new HashMap<>();
+    if (states != null) {
+      fields.put("states", states);
+    }
+    for (String param : new String[] {"name", "nickname", "errorCode", "tfa"}) {
+      if (params.containsKey(param)) {
+        String value = params.get(param);
+        fields.put(param, value != null ? value : DELETE);
+      }
+    }
+    if (params.containsKey("localDeviceId")) {
+      String localDeviceId = params.get("localDeviceId");
+      if (localDeviceId != null) {
+        Map<String, Object> otherDeviceId = new HashMap<>();
+        otherDeviceId.put("deviceId", localDeviceId);
+        List<Object> otherDeviceIds = new ArrayList<>();
+        otherDeviceIds.add(otherDeviceId);
+        fields.put("otherDeviceIds", otherDeviceIds);
+      } else {
+        fields.put("otherDeviceIds", DELETE);
+      }
+    }
+
+    if (fields.isEmpty()) {
+      return fields.keySet();
+    }
+    DeviceDocument device = getLocalDevice(userId, deviceId);
+    updateFields(userId, deviceId, fields).get();
+    Set<String> changed = new HashSet<>(fields.keySet());
+    if (device != null) {
+      // Numbers may compare unequal across types, e.g. 1.0 and 1L, which only costs a report.
+      changed.removeIf(
+          field ->
+              fields.get(field) == DELETE
+                  ? !device.contains(field)
+                  : fields.get(field).equals(device.get(field)));
+    }
+    return changed;
+  }
+
+  @Override
+  public Map<String, Object> getState(String userId, String deviceId)
+      throws ExecutionException, InterruptedException {
+    return (Map<String, Object>) requireDevice(userId, deviceId).get("states");
+  }
+
+  @Override
+  public Map<String, Map<String, Object>> getStates(String userId, List<String> deviceIds)
+      throws ExecutionException, InterruptedException {
+    Map<String, Map<String, Object>> states = new HashMap<>();
+    for (DeviceDocument device : getDevicesById(userId, deviceIds).values()) {
+      states.put(device.getId(), (Map<String, Object>) device.get("states"));
+    }
+    return states;
+  }
+
+  @Override
+  public Map<String, Object> execute(
+      String userId, String deviceId, ExecuteRequest.Inputs.Payload.Commands.Execution execution)
+      throws Exception {
+
+    DeviceDocument device = requireDevice(userId, deviceId);
+    CommandHandler handler = CommandHandlers.get(execution.command);
+    for (int attempt = 1; ; attempt++) {
+      CommandContext context = new CommandContext(device, execution.getParams());
+      checkPreconditions(device, execution);
+      if (handler != null) {
+        handler.execute(context);
+      }
+
+      // Every field the command changes is collected in the context and written in one update, so
+      // a command costs a single round trip and is applied all-or-nothing.
+      Map<String, Object> updates = context.getUpdates();
+      if (!updates.isEmpty() && !context.readsState()) {
+        write(deviceId, updateFields(userId, deviceId, updates));
+      } else if (!updates.isEmpty()) {
+        if (device.getVersion() == null) {
+          // A cached copy has no version to write against. Run again on a versioned read, which
+          // does not count as an attempt.
+          device = requireDeviceForUpdate(userId, deviceId);
+          attempt--;
+          continue;
+        }
+        conditionalWrites.increment();
+        if (!write(deviceId, updateFieldsIfUnchanged(userId, device, updates))) {
+          writeConflicts.increment();
+          if (attempt >= maxWriteAttempts) {
+            writeConflictsExhausted.increment();
+            LOGGER.warn("gave up on device {} after {} conflicting writes", deviceId, attempt);
+            throw new Exception("transientError");
+          }
+          device = requireDeviceForUpdate(userId, deviceId);
+          continue;
+        }
+      }
+      if (context.isPending()) {
+        throw new RuntimeException("PENDING");
+      }
+      return context.getStates();
+    }
+  }
+
+  /** Waits for a write; returns false only if a conditional write conflicted. */
+  private static boolean write(String deviceId, ApiFuture<?> write) throws Exception {
+    try {
+      return !Boolean.FALSE.equals(write.get());
+    } catch (ExecutionException e) {
+      LOGGER.error("failed to update device " + deviceId, e.getCause());
+      throw new Exception("transientError");
+    }
+  }
+
+  private DeviceDocument requireDeviceForUpdate(String userId, String deviceId)
+      throws ExecutionException, InterruptedException {
+    DeviceDocument device = getDeviceForUpdate(userId, deviceId);
+    if (device == null) {
+      throw new RuntimeException("deviceNotFound");
+    }
+    if (device.getVersion() == null) {
+      throw new IllegalStateException("no version for device " + deviceId);
+    }
+    return device;
+  }
+
+  /** Commands whose write was conditional on the device being unchanged. */
+  long conditionalWrites() {
+    return conditionalWrites.sum();
+  }
+
+  /** Conditional writes that found the device changed, each followed by a retry or a failure. */
+  long writeConflicts() {
+    return writeConflicts.sum();
+  }
+
+  /** Commands failed with transientError after conflicting on every attempt. */
+  long writeConflictsExhausted() {
+    return writeConflictsExhausted.sum();
+  }
+
+  /** The checks every command must pass, whichever trait it belongs to. */
+  private static void checkPreconditions(
+      DeviceDocument device, ExecuteRequest.Inputs.Payload.Commands.Execution execution)
+      throws Exception {
+    Map<String, Object> states = (Map<String, Object>) device.get("states");
+    if (states == null || !(Boolean) states.get("online")) {
+      throw new Exception("deviceOffline");
+    }
+
+    if (device.contains("errorCode") && !device.getString("errorCode").isEmpty()) {
+      throw new Exception(device.getString("errorCode"));
+    }
+
+    if (device.contains("tfa")) {
+      if (device.getString("tfa").equals("ack") && execution.getChallenge() == null) {
+        throw new Exception("ackNeeded");
+      } else if (!device.getString("tfa").isEmpty() && execution.getChallenge() == null) {
+        throw new Exception("pinNeeded");
+      } else if (!device.getString("tfa").isEmpty() && execution.getChallenge() != null) {
+        String pin = (String) execution.getChallenge().get("pin");
+        if (pin != null && !pin.equals(device.getString("tfa"))) {
+          throw new Exception("challengeFailedPinNeeded");
+        }
+      }
+    }
+  }
+}
@@ -0,0 +1,190 @@
+/*
+ * Copyright 2019 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.auth.oauth2.GoogleCredentials;
+import com.google.gson.Gson;
+
+/**
+ * What every servlet shares: one {@link MySmartHomeApp} holding the credentials, the data store
+ * and a Gson. Sharing one app also makes its state report batching and requestSync debouncing
+ * cover the whole process.
+ *
+ * <p>An instance's first request would otherwise also open the Firestore channel and load
+ * protobuf descriptors, command handlers and thread pools. {@link #warmUp} does all of that ahead
+ * of traffic; App Engine triggers it through {@link WarmupServlet}. The HomeGraph access token is
+ * left to the app's own credentials, which fetch it on first use. The time taken to create the
+ * context, to warm it up and to serve the first fulfillment request are exported as gauges.
+ */
+final class AppContext {
+  private static final Logger LOGGER = LoggerFactory.getLogger(MySmartHomeApp.class);
+  private static AppContext instance;
+
+  private final MySmartHomeApp app;
+  private final MyDataStore database;
+  private final Gson gson = new Gson();
+  private final long startupNanos;
+  // Both stay at -1 until known.
+  private volatile long warmUpNanos = -1;
+  private final AtomicLong firstRequestNanos = new AtomicLong(-1);
+
+  private interface Step {
+    void run() throws Exception;
+  }
+
+  AppContext(MySmartHomeApp app, MyDataStore database, long startupNanos) {
+    this.app = app;
+    this.database = database;
+    this.startupNanos = startupNanos;
+  }
+
+  static synchronized AppContext getInstance() {
+    if (instance == null) {
+      long start = System.nanoTime();
+      GoogleCredentials credentials = loadCredentials();
+      MySmartHomeApp app = new MySmartHomeApp();
+      if (credentials != null) {
+        app.setCredentials(credentials);
+      }
+      instance = new AppContext(app, MyDataStore.getInstance(), System.nanoTime() - start);
+      instance.exportMetrics(Metrics.getInstance());
+      LOGGER.info("application context created in {} ms", instance.startupMillis());
+    }
+    return instance;
+  }
+
+  private static GoogleCredentials loadCredentials() {
+    try {
+      return GoogleCredentials.fromStream(
+          AppContext.class.getResourceAsStream("/smart-home-key.json"));
+    } catch (Exception e) {
+      LOGGER.error("couldn't load credentials");
+      return null;
+    }
+  }
+
+  MySmartHomeApp getApp() {
+    return app;
+  }
+
+  MyDataStore getDatabase() {
+    return database;
+  }
+
+  Gson getGson() {
+    return gson;
+  }
+
+  /**
+   * Initializes everything the first requests would otherwise initialize. Steps that fail are
+   * logged and skipped, so a failed warm-up only leaves their cost to the first request. Calls
+   * after the first return immediately.
+   */
+  synchronized void warmUp() {
+    if (warmUpNanos >= 0) {
+      return;
+    }
+    long start = System.nanoTime();
+    step("store", database::warmUp);
+    step("protobuf", AppContext::warmUpProtobuf);
+    step("commands", () -> CommandHandlers.get("action.devices.commands.OnOff"));
+    step("executors", ExecuteFanOut::getInstance);
+    step("gson", this::warmUpGson);
+    warmUpNanos = System.nanoTime() - start;
+    LOGGER.info("warmed up in {} ms", warmUpMillis());
+  }
+
+  private static void step(String name, Step step) {
+    long start = System.nanoTime();
+    try {
+      step.run();
+      LOGGER.info("warm-up of {} took {} ms", name, millis(System.nanoTime() - start));
+    } catch (Exception e) {
+      LOGGER.warn("warm-up of " + name + " failed", e);
+    }
+  }
+
+  /** Builds a throwaway state report, loading the HomeGraph and Struct descriptors. */
+  private static void warmUpProtobuf() {
+    Map<String, Object> states = new HashMap<>();
+    states.put("on", true);
+    states.put("brightness", 50);
+    ReportState.buildRequest(
+        "warmup", Collections.singletonMap("warmup", ReportState.toStruct(states)));
+  }
+
+  /** Builds the type adapters of the responses servlets serialize with {@link #getGson}. */
+  private void warmUpGson() {
+    gson.toJson(new DeviceProvisioner.Report());
+    gson.toJson(new StateIngester.Report());
+    gson.toJson(new DeviceReclaimer.Job("warmup", "warmup"));
+    gson.fromJson("{\"on\":true}", HashMap.class);
+  }
+
+  /** Records the latency of a fulfillment request that started at {@code startNanos}. */
+  void requestServed(long startNanos) {
+    long nanos = System.nanoTime() - startNanos;
+    if (firstRequestNanos.compareAndSet(-1, nanos)) {
+      LOGGER.info(
+          "first fulfillment request took {} ms, {}",
+          millis(nanos),
+          warmUpNanos >= 0 ? "after warm-up" : "without warm-up");
+    }
+  }
+
+  long startupMillis() {
+    return millis(startupNanos);
+  }
+
+  /** Returns how long {@link #warmUp} took, or -1 if it has not run. */
+  long warmUpMillis() {
+    long nanos = warmUpNanos;
+    return nanos >= 0 ? millis(nanos) : -1;
+  }
+
+  /** Returns how long the first fulfillment request took, or -1 if none was served yet. */
+  long firstRequestMillis() {
+    long nanos = firstRequestNanos.get();
+    return nanos >= 0 ? millis(nanos) : -1;
+  }
+
+  private static long millis(long nanos) {
+    return TimeUnit.NANOSECONDS.toMillis(nanos);
+  }
+
+  void exportMetrics(Metrics metrics) {
+    metrics.gauge(
+        "smarthome_startup_ms",
+        "Time taken to create the application context.",
+        this::startupMillis);
+    metrics.gauge(
+        "smarthome_warmup_ms", "Time taken to warm up, or -1 before warm-up.", this::warmUpMillis);
+    metrics.gauge(
+        "smarthome_first_request_ms",
+        "Latency of the first fulfillment request, or -1 before it is served.",
+        this::firstRequestMillis);
+  }
+}
@@ -0,0 +1,116 @@
+/*
+ * Copyright 2019 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * The device and parameters a {@link CommandHandler} works on, and what it produces: the states
+ * to report back and the fields to write to the device document.
+ *
+ * <p>Handlers read states through {@link #getStoredState} or {@link #getState}, which record that
+ * the command's writes depend on them. Such writes are only applied if the device was not changed
+ * since it was read.
+ */
+final class CommandContext {
+  private final DeviceDocument device;
+  private final Map<String, Object> storedStates;
+  private final Map<String, Object> params;
+  private final Map<String, Object> states = new HashMap<>();
+  private final Map<String, Object> updates = new HashMap<>();
+  private boolean pending;
+  private boolean readsState;
+
+  CommandContext(DeviceDocument device, Map<String, Object> params) {
+    this.device = device;
+    Map<String, Object> stored = (Map<String, Object>) device.get("states");
+    this.storedStates = stored != null ? stored : Collections.<String, Object>emptyMap();
+    this.params = params != null ? params : Collections.<String, Object>emptyMap();
+    states.putAll(storedStates);
+  }
+
+  DeviceDocument getDevice() {
+    return device;
+  }
+
+  /** Returns the device attributes, or null if it has none. */
+  Map<String, Object> getAttributes() {
+    return (Map<String, Object>) device.get("attributes");
+  }
+
+  /** Returns a state as stored before this command. */
+  Object getStoredState(String name) {
+    readsState = true;
+    return storedStates.get(name);
+  }
+
+  /** Returns a state as changed so far by this command. */
+  Object getState(String name) {
+    readsState = true;
+    return states.get(name);
+  }
+
+  /** Whether the command read the device's states, so its writes must be conditional. */
+  boolean readsState() {
+    return readsState;
+  }
+
+  Object getParam(String name) {
+    return params.get(name);
+  }
+
+  boolean hasParam(String name) {
+    return params.containsKey(name);
+  }
+
+  /** The states to report back, initially the stored states. */
+  Map<String, Object> getStates() {
+    return states;
+  }
+
+  /** Writes a state to the device and reports its new value. */
+  void set(String name, Object value) {
+    write(name, value);
+    states.put(name, value);
+  }
+
+  /** Writes a state to the device without reporting it. */
+  void write(String name, Object value) {
+    updates.put("states." + name, value);
+  }
+
+  /** Reports a state without writing it to the device. */
+  void report(String name, Object value) {
+    states.put(name, value);
+  }
+
+  /** The fields to write, as dotted paths into the device document. */
+  Map<String, Object> getUpdates() {
+    return updates;
+  }
+
+  /** Marks the command as accepted but still running on the device. */
+  void setPending() {
+    pending = true;
+  }
+
+  boolean isPending() {
+    return pending;
+  }
+}
@@ -0,0 +1,27 @@
+/*
+ * Copyright 2019 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example;
+
+/**
+ * Applies one EXECUTE command to a device. Handlers run after the shared online, errorCode and
+ * two-factor checks, and are registered by command name in {@link CommandHandlers}.
+ */
+interface CommandHandler {
+
+  /** @throws Exception whose message is the errorCode to return for this device */
+  void execute(CommandContext context) throws Exception;
+}
@@ -0,0 +1,692 @@
+/*
+ * Copyright 2019 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example;
+
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * The {@link CommandHandler} of every supported EXECUTE command, grouped by trait. The registry is
+ * built once and never changes, so dispatching a command is a single map lookup.
+ */
+final class CommandHandlers {
+  private static final Logger LOGGER = LoggerFactory.getLogger(MySmartHomeApp.class);
+  private static final String PREFIX = "action.devices.commands.";
+  private static final Map<String, CommandHandler> HANDLERS;
+
+  static {
+    Map<String, CommandHandler> handlers = new HashMap<>();
+    AppSelector.register(handlers);
+    ArmDisarm.register(handlers);
+    Brightness.register(handlers);
+    CameraStream.register(handlers);
+    ColorSetting.register(handlers);
+    Cook.register(handlers);
+    Dispense.register(handlers);
+    Dock.register(handlers);
+    EnergyStorage.register(handlers);
+    FanSpeed.register(handlers);
+    Fill.register(handlers);
+    HumiditySetting.register(handlers);
+    InputSelector.register(handlers);
+    Locator.register(handlers);
+    LockUnlock.register(handlers);
+    NetworkControl.register(handlers);
+    OnOff.register(handlers);
+    OpenClose.register(handlers);
+    Reboot.register(handlers);
+    Rotation.register(handlers);
+    Scene.register(handlers);
+    SoftwareUpdate.register(handlers);
+    StartStop.register(handlers);
+    Modes.register(handlers);
+    Timer.register(handlers);
+    Toggles.register(handlers);
+    TemperatureControl.register(handlers);
+    TemperatureSetting.register(handlers);
+    TransportControl.register(handlers);
+    Volume.register(handlers);
+    HANDLERS = Collections.unmodifiableMap(handlers);
+  }
+
+  private CommandHandlers() {}
+
+  /** Returns the handler of a command, e.g. "action.devices.commands.OnOff", or null. */
+  static CommandHandler get(String command) {
+    return HANDLERS.get(command);
+  }
+
+  private static void register(
+      Map<String, CommandHandler> handlers, String command, CommandHandler handler) {
+    handlers.put(PREFIX + command, handler);
+  }
+
+  /** action.devices.traits.AppSelector */
+  static final class AppSelector {
+    static void register(Map<String, CommandHandler> handlers) {
+      CommandHandlers.register(handlers, "appSelect", AppSelector::select);
+      CommandHandlers.register(
+          handlers, "appInstall", context -> LOGGER.info("Install app " + application(context)));
+      CommandHandlers.register(
+          handlers, "appSearch", context -> LOGGER.info("Search for app " + application(context)));
+    }
+
+    private static String application(CommandContext context) {
+      String newApplication = (String) context.getParam("newApplication");
+      return newApplication != null
+          ? newApplication
+          : (String) context.getParam("newApplicationName");
+    }
+
+    private static void select(CommandContext context) {
+      context.set("currentApplication", application(context));
+    }
+  }
+
+  /** action.devices.traits.ArmDisarm */
+  static final class ArmDisarm {
+    static void register(Map<String, CommandHandler> handlers) {
+      CommandHandlers.register(handlers, "ArmDisarm", ArmDisarm::armDisarm);
+    }
+
+    private static void armDisarm(CommandContext context) {
+      Map<String, Object> states = context.getStates();
+      if (context.hasParam("arm")) {
+        states.put("isArmed", context.getParam("arm"));
+      } else if (context.hasParam("cancel")) {
+        // Cancel value is in relation to the arm value
+        boolean isArmed = (boolean) context.getParam("arm");
+        states.put("isArmed", !isArmed);
+      }
+      context.write("isArmed", states.get("isArmed"));
+      if (context.hasParam("armLevel")) {
+        context.set("currentArmLevel", context.getParam("armLevel"));
+      }
+    }
+  }
+
+  /** action.devices.traits.Brightness */
+  static final class Brightness {
+    static void register(Map<String, CommandHandler> handlers) {
+      CommandHandlers.register(
+          handlers,
+          "BrightnessAbsolute",
+          context -> context.set("brightness", context.getParam("brightness")));
+    }
+  }
+
+  /** action.devices.traits.CameraStream */
+  static final class CameraStream {
+    static void register(Map<String, CommandHandler> handlers) {
+      CommandHandlers.register(
+          handlers,
+          "GetCameraStream",
+          context -> context.report("cameraStreamAccessUrl", "https://fluffysheep.com/baaaaa.mp4"));
+    }
+  }
+
+  /** action.devices.traits.ColorSetting */
+  static final class ColorSetting {
+    static void register(Map<String, CommandHandler> handlers) {
+      CommandHandlers.register(handlers, "ColorAbsolute", ColorSetting::colorAbsolute);
+    }
+
+    private static void colorAbsolute(CommandContext context) throws Exception {
+      Map<String, Object> color = (Map<String, Object>) context.getParam("color");
+      String colorType;
+      Object value;
+      if (color.containsKey("spectrumRGB")) {
+        colorType = "spectrumRgb";
+        value = color.get("spectrumRGB");
+      } else if (color.containsKey("spectrumHSV")) {
+        colorType = "spectrumHsv";
+        value = color.get("spectrumHSV");
+      } else if (color.containsKey("temperature")) {
+        colorType = "temperatureK";
+        value = color.get("temperature");
+      } else {
+        throw new Exception("notSupported");
+      }
+      context.write("color." + colorType, value);
+      context.report(colorType, value);
+    }
+  }
+
+  /** action.devices.traits.Cook */
+  static final class Cook {
+    static void register(Map<String, CommandHandler> handlers) {
+      CommandHandlers.register(handlers, "Cook", Cook::cook);
+    }
+
+    private static void cook(CommandContext context) {
+      boolean startCooking = (boolean) context.getParam("start");
+      if (startCooking) {
+        context.write("currentCookingMode", context.getParam("cookingMode"));
+        context.write("currentFoodPreset", paramOrDefault(context, "foodPreset", "NONE"));
+        context.write("currentFoodQuantity", paramOrDefault(context, "quantity", 0));
+        context.write("currentFoodUnit", paramOrDefault(context, "unit", "NONE"));
+        // Server getting response will handle any undefined values
+        context.report("currentCookingMode", context.getParam("cookingMode"));
+        context.report("currentFoodPreset", context.getParam("foodPreset"));
+        context.report("currentFoodQuantity", context.getParam("quantity"));
+        context.report("currentFoodUnit", context.getParam("unit"));
+      } else {
+        // Done cooking, reset
+        context.set("currentCookingMode", "NONE");
+        context.set("currentFoodPreset", "NONE");
+        context.write("currentFoodQuantity", 0);
+        context.write("currentFoodUnit", "NONE");
+      }
+    }
+
+    private static Object paramOrDefault(CommandContext context, String name, Object value) {
+      return context.hasParam(name) ? context.getParam(name) : value;
+    }
+  }
+
+  /** action.devices.traits.Dispense */
+  static final class Dispense {
+    static void register(Map<String, CommandHandler> handlers) {
+      CommandHandlers.register(handlers, "Dispense", Dispense::dispense);
+    }
+
+    private static void dispense(CommandContext context) {
+      int amount = (int) context.getParam("amount");
+      String unit = (String) context.getParam("unit");
+      if ("cat food bowl".equals(context.getParam("presetName"))) {
+        // Fill in params
+        amount = 4;
+        unit = "CUPS";
+      }
+      Map<String, Object> amountLastDispensed = new HashMap<>();
+      amountLastDispensed.put("amount", amount);
+      amountLastDispensed.put("unit", unit);
+      Map<String, Object> item = new HashMap<>();
+      item.put("itemName", context.getParam("item"));
+      item.put("amountLastDispensed", amountLastDispensed);
+      item.put("isCurrentlyDispensing", context.hasParam("presetName"));
+      context.set("dispenseItems", new Map[] {item});
+    }
+  }
+
+  /** action.devices.traits.Dock */
+  static final class Dock {
+    static void register(Map<String, CommandHandler> handlers) {
+      // This has no parameters
+      CommandHandlers.register(handlers, "Dock", context -> context.set("isDocked", true));
+    }
+  }
+
+  /** action.devices.traits.EnergyStorage */
+  static final class EnergyStorage {
+    static void register(Map<String, CommandHandler> handlers) {
+      CommandHandlers.register(
+          handlers, "Charge", context -> context.set("isCharging", context.getParam("charge")));
+    }
+  }
+
+  /** action.devices.traits.FanSpeed */
+  static final class FanSpeed {
+    static void register(Map<String, CommandHandler> handlers) {
+      CommandHandlers.register(
+          handlers,
+          "SetFanSpeed",
+          context -> context.set("currentFanSpeedSetting", context.getParam("fanSpeed")));
+      CommandHandlers.register(
+          handlers, "Reverse", context -> context.write("currentFanSpeedReverse", true));
+    }
+  }
+
+  /** action.devices.traits.Fill */
+  static final class Fill {
+    static void register(Map<String, CommandHandler> handlers) {
+      CommandHandlers.register(handlers, "Fill", Fill::fill);
+    }
+
+    private static void fill(CommandContext context) {
+      // When draining, the fill level is "none"
+      String currentFillLevel = "none";
+      boolean fill = (boolean) context.getParam("fill");
+      if (fill) {
+        currentFillLevel =
+            context.hasParam("fillLevel")
+                ? (String) context.getParam("fillLevel")
+                : "half"; // Default fill level
+      }
+      context.set("isFilled", fill);
+      context.set("currentFillLevel", currentFillLevel);
+    }
+  }
+
+  /** action.devices.traits.HumiditySetting */
+  static final class HumiditySetting {
+    static void register(Map<String, CommandHandler> handlers) {
+      CommandHandlers.register(
+          handlers,
+          "SetHumidity",
+          context ->
+              context.set("humiditySetpointPercent", context.getParam("humiditySetpointPercent")));
+    }
+  }
+
+  /** action.devices.traits.InputSelector */
+  static final class InputSelector {
+    static void register(Map<String, CommandHandler> handlers) {
+      CommandHandlers.register(
+          handlers,
+          "SetInput",
+          context -> context.set("currentInput", context.getParam("newInput")));
+      CommandHandlers.register(
+          handlers, "PreviousInput", context -> select(context, index -> Math.min(index - 1, 0)));
+      CommandHandlers.register(handlers, "NextInput", InputSelector::next);
+    }
+
+    private interface IndexStep {
+      int apply(int index);
+    }
+
+    private static void next(CommandContext context) {
+      int last = availableInputs(context).length - 1;
+      select(context, index -> Math.min(index + 1, last));
+    }
+
+    private static Map<String, Object>[] availableInputs(CommandContext context) {
+      return (Map<String, Object>[]) context.getAttributes().get("availableInputs");
+    }
+
+    private static void select(CommandContext context, IndexStep step) {
+      String currentInput = (String) context.getStoredState("currentInput");
+      Map<String, Object>[] availableInputs = availableInputs(context);
+      int index = -1;
+      for (int i = 0; i < availableInputs.length; i++) {
+        if (currentInput.equals(availableInputs[i].get("key"))) {
+          index = i;
+        }
+      }
+      context.set("currentInput", availableInputs[step.apply(index)].get("key"));
+    }
+  }
+
+  /** action.devices.traits.Locator */
+  static final class Locator {
+    static void register(Map<String, CommandHandler> handlers) {
+      CommandHandlers.register(
+          handlers,
+          "Locate",
+          context -> {
+            context.write("silent", context.getParam("silent"));
+            context.set("generatedAlert", true);
+          });
+    }
+  }
+
+  /** action.devices.traits.LockUnlock */
+  static final class LockUnlock {
+    static void register(Map<String, CommandHandler> handlers) {
+      CommandHandlers.register(
+          handlers, "LockUnlock", context -> context.set("isLocked", context.getParam("lock")));
+    }
+  }
+
+  /** action.devices.traits.NetworkControl */
+  static final class NetworkControl {
+    static void register(Map<String, CommandHandler> handlers) {
+      CommandHandlers.register(
+          handlers,
+          "EnableDisableGuestNetwork",
+          context -> context.set("guestNetworkEnabled", context.getParam("enable")));
+      CommandHandlers.register(
+          handlers, "EnableDisableNetworkProfile", NetworkControl::enableDisableProfile);
+      CommandHandlers.register(handlers, "TestNetworkSpeed", NetworkControl::testSpeed);
+      CommandHandlers.register(
+          handlers,
+          "GetGuestNetworkPassword",
+          context -> context.report("guestNetworkPassword", "wifi-password-123"));
+    }
+
+    private static void enableDisableProfile(CommandContext context) {
+      List<String> profiles = (List<String>) context.getAttributes().get("networkProfiles");
+      if (!profiles.contains(context.getParam("profile"))) {
+        throw new RuntimeException("networkProfileNotRecognized");
+      }
+      // No state change occurs
+    }
+
+    private static void testSpeed(CommandContext context) {
+      boolean testDownloadSpeed = (boolean) context.getParam("testDownloadSpeed");
+      boolean testUploadSpeed = (boolean) context.getParam("testUploadSpeed");
+      Map<String, Object> lastNetworkDownloadSpeedTest =
+          (Map<String, Object>) context.getStoredState("lastNetworkDownloadSpeedTest");
+      Map<String, Object> lastNetworkUploadSpeedTest =
+          (Map<String, Object>) context.getStoredState("lastNetworkUploadSpeedTest");
+      int unixTimestampSec = Math.toIntExact(new Date().getTime() / 1000);
+      if (testDownloadSpeed) {
+        lastNetworkDownloadSpeedTest.put("downloadSpeedMbps", (Math.random() * 100));
+        lastNetworkDownloadSpeedTest.put("unixTimestampSec", unixTimestampSec);
+      }
+      if (testUploadSpeed) {
+        lastNetworkUploadSpeedTest.put("uploadSpeedMbps", (Math.random() * 100));
+        lastNetworkUploadSpeedTest.put("unixTimestampSec", unixTimestampSec);
+      }
+      context.write("lastNetworkDownloadSpeedTest", lastNetworkDownloadSpeedTest);
+      context.write("lastNetworkUploadSpeedTest", lastNetworkUploadSpeedTest);
+      context.setPending();
+    }
+  }
+
+  /** action.devices.traits.OnOff */
+  static final class OnOff {
+    static void register(Map<String, CommandHandler> handlers) {
+      CommandHandlers.register(
+          handlers, "OnOff", context -> context.set("on", context.getParam("on")));
+    }
+  }
+
+  /** action.devices.traits.OpenClose */
+  static final class OpenClose {
+    static void register(Map<String, CommandHandler> handlers) {
+      CommandHandlers.register(handlers, "OpenClose", OpenClose::openClose);
+    }
+
+    private static void openClose(CommandContext context) {
+      // Check if the device can open in multiple directions
+      Map<String, Object> attributes = context.getAttributes();
+      if (attributes == null || !attributes.containsKey("openDirection")) {
+        // The device can only open in one direction
+        context.set("openPercent", context.getParam("openPercent"));
+        return;
+      }
+      // The device can open in more than one direction
+      Object direction = context.getParam("openDirection");
+      List<Map<String, Object>> openStates =
+          (List<Map<String, Object>>) context.getState("openState");
+      for (Map<String, Object> state : openStates) {
+        if (state.get("openDirection").equals(direction)) {
+          state.put("openPercent", context.getParam("openPercent"));
+        }
+      }
+      context.report("openStates", openStates);
+      context.write("openState", openStates);
+    }
+  }
+
+  /** action.devices.traits.Reboot */
+  static final class Reboot {
+    static void register(Map<String, CommandHandler> handlers) {
+      CommandHandlers.register(handlers, "Reboot", context -> context.write("online", false));
+    }
+  }
+
+  /** action.devices.traits.Rotation */
+  static final class Rotation {
+    static void register(Map<String, CommandHandler> handlers) {
+      CommandHandlers.register(handlers, "RotateAbsolute", Rotation::rotateAbsolute);
+    }
+
+    private static void rotateAbsolute(CommandContext context) {
+      if (context.hasParam("rotationPercent")) {
+        context.set("rotationPercent", context.getParam("rotationPercent"));
+      } else if (context.hasParam("rotationDegrees")) {
+        context.set("rotationDegrees", context.getParam("rotationDegrees"));
+      }
+    }
+  }
+
+  // action.devices.traits.RunCycle - No execution
+
+  /** action.devices.traits.Scene */
+  static final class Scene {
+    static void register(Map<String, CommandHandler> handlers) {
+      // Scenes are stateless
+      CommandHandlers.register(
+          handlers,
+          "ActivateScene",
+          context -> context.write("deactivate", context.getParam("deactivate")));
+    }
+  }
+
+  /** action.devices.traits.SoftwareUpdate */
+  static final class SoftwareUpdate {
+    static void register(Map<String, CommandHandler> handlers) {
+      CommandHandlers.register(
+          handlers,
+          "SoftwareUpdate",
+          context -> {
+            context.write("online", false);
+            context.write("lastSoftwareUpdateUnixTimestampSec", new Date().getTime() / 1000);
+          });
+    }
+  }
+
+  /** action.devices.traits.StartStop */
+  static final class StartStop {
+    static void register(Map<String, CommandHandler> handlers) {
+      CommandHandlers.register(
+          handlers, "StartStop", context -> context.set("isRunning", context.getParam("start")));
+      CommandHandlers.register(
+          handlers, "PauseUnpause", context -> context.set("isPaused", context.getParam("pause")));
+    }
+  }
+
+  /** action.devices.traits.Modes */
+  static final class Modes {
+    static void register(Map<String, CommandHandler> handlers) {
+      CommandHandlers.register(
+          handlers,
+          "SetModes",
+          context -> merge(context, "currentModeSettings", "updateModeSettings"));
+    }
+  }
+
+  /** action.devices.traits.Toggles */
+  static final class Toggles {
+    static void register(Map<String, CommandHandler> handlers) {
+      CommandHandlers.register(
+          handlers,
+          "SetToggles",
+          context -> merge(context, "currentToggleSettings", "updateToggleSettings"));
+    }
+  }
+
+  /** Merges the settings in a map parameter into a map state, as Modes and Toggles do. */
+  private static void merge(CommandContext context, String state, String param) {
+    Map<String, Object> settings = (Map<String, Object>) context.getState(state);
+    if (settings == null) {
+      settings = new HashMap<>();
+    }
+    Map<String, Object> update = (Map<String, Object>) context.getParam(param);
+    if (update != null) {
+      settings.putAll(update);
+    }
+    context.set(state, settings);
+  }
+
+  /** action.devices.traits.Timer */
+  static final class Timer {
+    static void register(Map<String, CommandHandler> handlers) {
+      CommandHandlers.register(
+          handlers,
+          "TimerStart",
+          context -> context.set("timerRemainingSec", context.getParam("timerTimeSec")));
+      CommandHandlers.register(handlers, "TimerAdjust", Timer::adjust);
+      CommandHandlers.register(
+          handlers,
+          "TimerPause",
+          context -> {
+            requireTimer(context);
+            context.set("timerPaused", true);
+          });
+      CommandHandlers.register(
+          handlers,
+          "TimerResume",
+          context -> {
+            requireTimer(context);
+            context.set("timerPaused", false);
+          });
+      CommandHandlers.register(
+          handlers,
+          "TimerCancel",
+          context -> {
+            requireTimer(context);
+            context.write("timerRemainingSec", -1);
+            context.report("timerRemainingSec", 0);
+          });
+    }
+
+    /** Returns the remaining seconds of the running timer. */
+    private static int requireTimer(CommandContext context) {
+      int timerRemainingSec = ((Number) context.getState("timerRemainingSec")).intValue();
+      if (timerRemainingSec == -1) {
+        throw new RuntimeException("noTimerExists");
+      }
+      return timerRemainingSec;
+    }
+
+    private static void adjust(CommandContext context) {
+      int newTimerRemainingSec =
+          requireTimer(context) + ((Number) context.getParam("timerTimeSec")).intValue();
+      if (newTimerRemainingSec < 0) {
+        throw new RuntimeException("valueOutOfRange");
+      }
+      context.set("timerRemainingSec", newTimerRemainingSec);
+    }
+  }
+
+  /** action.devices.traits.TemperatureControl */
+  static final class TemperatureControl {
+    static void register(Map<String, CommandHandler> handlers) {
+      CommandHandlers.register(
+          handlers,
+          "SetTemperature",
+          context ->
+              context.set("temperatureSetpointCelsius", context.getParam("temperature")));
+    }
+  }
+
+  /** action.devices.traits.TemperatureSetting */
+  static final class TemperatureSetting {
+    static void register(Map<String, CommandHandler> handlers) {
+      CommandHandlers.register(
+          handlers,
+          "ThermostatTemperatureSetpoint",
+          context ->
+              context.set(
+                  "thermostatTemperatureSetpoint",
+                  context.getParam("thermostatTemperatureSetpoint")));
+      CommandHandlers.register(
+          handlers,
+          "ThermostatTemperatureSetRange",
+          context -> {
+            context.write(
+                "thermostatTemperatureSetpointLow",
+                context.getParam("thermostatTemperatureSetpointLow"));
+            context.write(
+                "thermostatTemperatureSetpointHigh",
+                context.getParam("thermostatTemperatureSetpointHigh"));
+          });
+      CommandHandlers.register(
+          handlers,
+          "ThermostatSetMode",
+          context -> context.set("thermostatMode", context.getParam("thermostatMode")));
+    }
+  }
+
+  /**
+   * action.devices.traits.TransportControl. Most commands are no-ops as they have no state.
+   */
+  static final class TransportControl {
+    static void register(Map<String, CommandHandler> handlers) {
+      CommandHandlers.register(
+          handlers, "mediaPrevious", context -> LOGGER.info("Play the previous media"));
+      CommandHandlers.register(
+          handlers, "mediaNext", context -> LOGGER.info("Play the next media"));
+      CommandHandlers.register(
+          handlers,
+          "mediaRepeatMode",
+          context ->
+              LOGGER.info(
+                  "Repeat mode enabled: "
+                      + context.getParam("isOn")
+                      + ". Single item enabled: "
+                      + context.getParam("isSingle")));
+      CommandHandlers.register(
+          handlers, "mediaShuffle", context -> LOGGER.info("Shuffle the playlist of media"));
+      CommandHandlers.register(
+          handlers,
+          "mediaClosedCaptioningOn",
+          context ->
+              LOGGER.info(
+                  "Closed captioning enabled for "
+                      + context.getParam("closedCaptioningLanguage")
+                      + " for user in "
+                      + context.getParam("userQueryLanguage")));
+      CommandHandlers.register(
+          handlers,
+          "mediaClosedCaptioningOff",
+          context -> LOGGER.info("Closed captioning disabled"));
+      CommandHandlers.register(
+          handlers, "mediaPause", context -> context.set("playbackState", "PAUSED"));
+      CommandHandlers.register(
+          handlers, "mediaResume", context -> context.set("playbackState", "PLAYING"));
+      CommandHandlers.register(
+          handlers, "mediaStop", context -> context.set("playbackState", "STOPPED"));
+      CommandHandlers.register(
+          handlers,
+          "mediaSeekRelative",
+          context ->
+              LOGGER.info(
+                  "Seek to (now + "
+                      + ((Number) context.getParam("relativePositionMs")).intValue()
+                      + ") ms"));
+      CommandHandlers.register(
+          handlers,
+          "mediaSeekToPosition",
+          context ->
+              LOGGER.info(
+                  "Seek to " + ((Number) context.getParam("absPositionMs")).intValue() + " ms"));
+    }
+  }
+
+  /** action.devices.traits.Volume */
+  static final class Volume {
+    static void register(Map<String, CommandHandler> handlers) {
+      CommandHandlers.register(
+          handlers,
+          "setVolume",
+          context ->
+              context.set(
+                  "currentVolume", ((Number) context.getParam("volumeLevel")).intValue()));
+      CommandHandlers.register(
+          handlers,
+          "volumeRelative",
+          context -> {
+            // Numbers arrive as Double from JSON and as Long from Firestore.
+            int currentVolume = ((Number) context.getStoredState("currentVolume")).intValue();
+            int relativeSteps = ((Number) context.getParam("relativeSteps")).intValue();
+            context.set("currentVolume", currentVolume + relativeSteps);
+          });
+      CommandHandlers.register(
+          handlers, "mute", context -> context.set("isMuted", (boolean) context.getParam("mute")));
+    }
+  }
+}
@@ -0,0 +1,49 @@
+/*
+ * Copyright 2019 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example;
+
+/**
+ * Startup configuration lookup. A setting named {@code smarthome.store} is read from the system
+ * property of that name first, then from the environment variable {@code SMARTHOME_STORE}.
+ */
+final class Config {
+
+  private Config() {}
+
+  static String get(String name, String defaultValue) {
+    String value = System.getProperty(name);
+    if (value == null) {
+      value = System.getenv(name.replace('.', '_').toUpperCase());
+    }
+    return value != null && !value.isEmpty() ? value : defaultValue;
+  }
+
+  static int getInt(String name, int defaultValue) {
+    String value = get(name, null);
+    return value != null ? Integer.parseInt(value.trim()) : defaultValue;
+  }
+
+  static long getLong(String name, long defaultValue) {
+    String value = get(name, null);
+    return value != null ? Long.parseLong(value.trim()) : defaultValue;
+  }
+
+  static boolean getBoolean(String name, boolean defaultValue) {
+    String value = get(name, null);
+    return value != null ? Boolean.parseBoolean(value.trim()) : defaultValue;
+  }
+}
@@ -0,0 +1,200 @@
+/*
+ * Copyright 2019 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Bounded, least-recently-used cache of device documents keyed by (userId, deviceId). Entries
+ * expire a fixed time after they were loaded. Writers update cached entries in place, and a read
+ * that raced with a write to the same device is not allowed to cache what it read.
+ */
+final class DeviceCache {
+
+  private static final int WRITE_STRIPES = 256;
+
+  private final int maxSize;
+  private final long ttlNanos;
+  private final LinkedHashMap<String, CachedDocument> entries;
+  // Bumped before every write, so a loader can tell whether its read may already be stale.
+  private final AtomicLongArray writeCounts = new AtomicLongArray(WRITE_STRIPES);
+
+  private final LongAdder hits = new LongAdder();
+  private final LongAdder misses = new LongAdder();
+  private final LongAdder evictions = new LongAdder();
+  private final LongAdder expirations = new LongAdder();
+
+  private static final class CachedDocument {
+    final Map<String, Object> data;
+    final long expiresAt;
+
+    CachedDocument(Map<String, Object> data, long expiresAt) {
+      this.data = data;
+      this.expiresAt = expiresAt;
+    }
+  }
+
+  DeviceCache(int maxSize, long ttl, TimeUnit unit) {
+    this.maxSize = maxSize;
+    this.ttlNanos = unit.toNanos(ttl);
+    this.entries =
+        new LinkedHashMap<String, CachedDocument>(16, 0.75f, true) {
+          @Override
+          protected boolean removeEldestEntry(Map.Entry<String, CachedDocument> eldest) {
+            if (size() > DeviceCache.this.maxSize) {
+              evictions.increment();
+              return true;
+            }
+            return false;
+          }
+        };
+  }
+
+  private static String key(String userId, String deviceId) {
+    // Firestore document ids cannot contain '/', so this cannot collide.
+    return userId + "/" + deviceId;
+  }
+
+  private int stripe(String key) {
+    int hash = key.hashCode();
+    return (hash ^ (hash >>> 16)) & (WRITE_STRIPES - 1);
+  }
+
+  private CachedDocument loaded(Map<String, Object> data) {
+    return new CachedDocument(DeviceDocument.copyOf(data), System.nanoTime() + ttlNanos);
+  }
+
+  boolean isEnabled() {
+    return maxSize > 0;
+  }
+
+  /** Returns a copy of the cached document, or null on a miss. */
+  Map<String, Object> get(String userId, String deviceId) {
+    String key = key(userId, deviceId);
+    CachedDocument entry;
+    synchronized (entries) {
+      entry = entries.get(key);
+      if (entry != null && entry.expiresAt - System.nanoTime() <= 0) {
+        entries.remove(key);
+        expirations.increment();
+        entry = null;
+      }
+    }
+    if (entry == null) {
+      misses.increment();
+      return null;
+    }
+    hits.increment();
+    return DeviceDocument.copyOf(entry.data);
+  }
+
+  /** Returns a token to pass to {@link #load} once the document has been read. */
+  long beginLoad(String userId, String deviceId) {
+    return writeCounts.get(stripe(key(userId, deviceId)));
+  }
+
+  /** Caches a document read from the backend, unless a write to it started since beginLoad. */
+  void load(String userId, String deviceId, long token, Map<String, Object> data) {
+    if (!isEnabled()) {
+      return;
+    }
+    String key = key(userId, deviceId);
+    CachedDocument entry = loaded(data);
+    synchronized (entries) {
+      if (writeCounts.get(stripe(key)) == token) {
+        entries.put(key, entry);
+      }
+    }
+  }
+
+  /** Replaces the cached document after it was written in full. */
+  void put(String userId, String deviceId, Map<String, Object> data) {
+    String key = key(userId, deviceId);
+    writeCounts.incrementAndGet(stripe(key));
+    if (!isEnabled()) {
+      return;
+    }
+    CachedDocument entry = loaded(data);
+    synchronized (entries) {
+      entries.put(key, entry);
+    }
+  }
+
+  /** Applies field-path updates to the cached document, if it is cached. */
+  void update(String userId, String deviceId, Map<String, Object> fields) {
+    String key = key(userId, deviceId);
+    writeCounts.incrementAndGet(stripe(key));
+    synchronized (entries) {
+      CachedDocument entry = entries.get(key);
+      if (entry != null) {
+        // Copy so that readers holding the previous document never see a partial update.
+        Map<String, Object> data = DeviceDocument.copyOf(entry.data);
+        DeviceDocument.applyUpdates(data, fields);
+        entries.put(key, new CachedDocument(data, entry.expiresAt));
+      }
+    }
+  }
+
+  void invalidate(String userId, String deviceId) {
+    String key = key(userId, deviceId);
+    writeCounts.incrementAndGet(stripe(key));
+    synchronized (entries) {
+      entries.remove(key);
+    }
+  }
+
+  void invalidateUser(String userId) {
+    String prefix = userId + "/";
+    synchronized (entries) {
+      Iterator<String> keys = entries.keySet().iterator();
+      while (keys.hasNext()) {
+        String key = keys.next();
+        if (key.startsWith(prefix)) {
+          writeCounts.incrementAndGet(stripe(key));
+          keys.remove();
+        }
+      }
+    }
+  }
+
+  long hits() {
+    return hits.sum();
+  }
+
+  long misses() {
+    return misses.sum();
+  }
+
+  long evictions() {
+    return evictions.sum();
+  }
+
+  long expirations() {
+    return expirations.sum();
+  }
+
+  int size() {
+    synchronized (entries) {
+      return entries.size();
+    }
+  }
+}
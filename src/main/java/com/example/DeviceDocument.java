@@ -0,0 +1,121 @@
+/*
+ * Copyright 2019 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A backend-neutral snapshot of a device document, shaped after Firestore's DocumentSnapshot so
+ * callers read fields the same way regardless of the configured {@link DeviceStore}.
+ */
+public final class DeviceDocument {
+  private final String id;
+  private final Map<String, Object> data;
+  private final Object version;
+
+  public DeviceDocument(String id, Map<String, Object> data) {
+    this(id, data, null);
+  }
+
+  /**
+   * @param version Identifies the stored revision this snapshot was read at, for writes that must
+   *     not apply over a later change; null if unknown, e.g. for a cached copy
+   */
+  public DeviceDocument(String id, Map<String, Object> data, Object version) {
+    this.id = id;
+    this.data = data;
+    this.version = version;
+  }
+
+  public String getId() {
+    return id;
+  }
+
+  public Map<String, Object> getData() {
+    return data;
+  }
+
+  public Object getVersion() {
+    return version;
+  }
+
+  public boolean contains(String field) {
+    return data.containsKey(field);
+  }
+
+  public Object get(String field) {
+    return data.get(field);
+  }
+
+  public String getString(String field) {
+    return (String) data.get(field);
+  }
+
+  /** Returns a copy of a document tree, so nested maps and lists can be mutated freely. */
+  @SuppressWarnings("unchecked")
+  static Object copyOf(Object value) {
+    if (value instanceof Map) {
+      Map<String, Object> copy = new HashMap<>();
+      for (Map.Entry<String, Object> entry : ((Map<String, Object>) value).entrySet()) {
+        copy.put(entry.getKey(), copyOf(entry.getValue()));
+      }
+      return copy;
+    }
+    if (value instanceof List) {
+      List<Object> copy = new ArrayList<>();
+      for (Object element : (List<Object>) value) {
+        copy.add(copyOf(element));
+      }
+      return copy;
+    }
+    return value;
+  }
+
+  @SuppressWarnings("unchecked")
+  static Map<String, Object> copyOf(Map<String, Object> value) {
+    return (Map<String, Object>) copyOf((Object) value);
+  }
+
+  /**
+   * Applies Firestore-style updates to a document in place. Keys are dotted field paths, and a
+   * value of {@link AbstractDeviceStore#DELETE} removes the field.
+   */
+  @SuppressWarnings("unchecked")
+  static void applyUpdates(Map<String, Object> data, Map<String, Object> updates) {
+    for (Map.Entry<String, Object> update : updates.entrySet()) {
+      String[] path = update.getKey().split("\\.");
+      Map<String, Object> parent = data;
+      for (int i = 0; i < path.length - 1; i++) {
+        Object child = parent.get(path[i]);
+        if (!(child instanceof Map)) {
+          child = new HashMap<String, Object>();
+          parent.put(path[i], child);
+        }
+        parent = (Map<String, Object>) child;
+      }
+      String field = path[path.length - 1];
+      if (update.getValue() == AbstractDeviceStore.DELETE) {
+        parent.remove(field);
+      } else {
+        parent.put(field, copyOf(update.getValue()));
+      }
+    }
+  }
+}
@@ -0,0 +1,265 @@
+/*
+ * Copyright 2019 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example;
+
+import java.util.Queue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
+
+/**
+ * Runs the mutations of each device one at a time, in the order they were submitted, while
+ * mutations of different devices run in parallel. Every (user, device) pair has a mailbox that
+ * exists only while it holds work, and at most one thread consumes it.
+ *
+ * <p>A submitter that finds the device idle runs its mutation on its own thread, so uncontended
+ * mutations cost no hand-off. Work queued behind it is passed to a pool of {@code
+ * smarthome.mailbox.threads} threads, which drains at most {@code smarthome.mailbox.batch}
+ * mutations of one device before yielding to the others. With no threads, the submitter that
+ * owns the mailbox drains it.
+ *
+ * <p>Mutations submitted with {@link #submitAsync} hold their mailbox until the stage they return
+ * completes, without holding a thread, so a device's later mutations wait for a write that is
+ * still queued in a batch.
+ */
+final class DeviceMailboxes {
+  private static DeviceMailboxes instance;
+
+  private final ConcurrentMap<String, Mailbox> mailboxes = new ConcurrentHashMap<>();
+  private final ExecutorService executor;
+  private final int batch;
+
+  private final LongAdder submitted = new LongAdder();
+  private final LongAdder queued = new LongAdder();
+  private final LongAdder handOffs = new LongAdder();
+  private final AtomicInteger pending = new AtomicInteger();
+
+  private final class Mailbox implements Runnable {
+    final String key;
+    final Queue<Supplier<CompletableFuture<?>>> tasks = new ConcurrentLinkedQueue<>();
+
+    Mailbox(String key) {
+      this.key = key;
+    }
+
+    /**
+     * Runs the next mutation. Returns false once the mailbox is empty and has been removed, or
+     * while the mutation is still in flight, in which case its completion resumes the mailbox.
+     */
+    boolean runNext() {
+      CompletableFuture<?> done = tasks.poll().get();
+      if (!done.isDone()) {
+        done.whenComplete(
+            (result, error) -> {
+              if (finish()) {
+                resume();
+              }
+            });
+        return false;
+      }
+      return finish();
+    }
+
+    /** Returns false once the mailbox is empty and has been removed. */
+    private boolean finish() {
+      pending.decrementAndGet();
+      // Emptiness is checked under the map's lock for this key, which submit() also holds while
+      // adding, so no mutation can be added to a mailbox that is being removed.
+      return mailboxes.computeIfPresent(key, (k, box) -> box.tasks.isEmpty() ? null : box) != null;
+    }
+
+    private void resume() {
+      if (executor != null) {
+        handOffs.increment();
+        executor.execute(this);
+      } else {
+        run();
+      }
+    }
+
+    @Override
+    public void run() {
+      for (int i = 1; runNext(); i++) {
+        if (executor != null && i == batch) {
+          resume();
+          return;
+        }
+      }
+    }
+  }
+
+  DeviceMailboxes(int threads, int batch) {
+    this.batch = Math.max(1, batch);
+    if (threads <= 0) {
+      this.executor = null;
+      return;
+    }
+    AtomicInteger count = new AtomicInteger();
+    ThreadFactory threadFactory =
+        runnable -> {
+          Thread thread = new Thread(runnable, "mailbox-" + count.incrementAndGet());
+          thread.setDaemon(true);
+          return thread;
+        };
+    this.executor = Executors.newFixedThreadPool(threads, threadFactory);
+  }
+
+  static synchronized DeviceMailboxes getInstance() {
+    if (instance == null) {
+      instance =
+          new DeviceMailboxes(
+              Config.getInt("smarthome.mailbox.threads", 8),
+              Config.getInt("smarthome.mailbox.batch", 16));
+      instance.exportMetrics(Metrics.getInstance());
+    }
+    return instance;
+  }
+
+  private static String key(String userId, String deviceId) {
+    return userId + '\u0000' + deviceId;
+  }
+
+  /**
+   * Runs {@code mutation} after every mutation submitted earlier for the same device.
+   *
+   * @return A future completed with the mutation's result or failure; already complete when the
+   *     device was idle
+   */
+  <T> CompletableFuture<T> submit(String userId, String deviceId, Callable<T> mutation) {
+    CompletableFuture<T> result = new CompletableFuture<>();
+    return enqueue(
+        userId,
+        deviceId,
+        result,
+        () -> {
+          try {
+            result.complete(mutation.call());
+          } catch (Throwable t) {
+            result.completeExceptionally(t);
+          }
+          return result;
+        });
+  }
+
+  /**
+   * Starts {@code mutation} after every mutation submitted earlier for the same device, and runs
+   * later ones only once the stage it returns has completed.
+   *
+   * @return A future completed like the stage {@code mutation} returns, or with its failure
+   */
+  <T> CompletableFuture<T> submitAsync(
+      String userId, String deviceId, Supplier<? extends CompletionStage<T>> mutation) {
+    CompletableFuture<T> result = new CompletableFuture<>();
+    return enqueue(
+        userId,
+        deviceId,
+        result,
+        () -> {
+          try {
+            mutation
+                .get()
+                .whenComplete(
+                    (value, error) -> {
+                      if (error != null) {
+                        result.completeExceptionally(error);
+                      } else {
+                        result.complete(value);
+                      }
+                    });
+          } catch (Throwable t) {
+            result.completeExceptionally(t);
+          }
+          return result;
+        });
+  }
+
+  private <T> CompletableFuture<T> enqueue(
+      String userId,
+      String deviceId,
+      CompletableFuture<T> result,
+      Supplier<CompletableFuture<?>> task) {
+    submitted.increment();
+    pending.incrementAndGet();
+    Mailbox[] created = new Mailbox[1];
+    mailboxes.compute(
+        key(userId, deviceId),
+        (key, box) -> {
+          if (box == null) {
+            box = created[0] = new Mailbox(key);
+          }
+          box.tasks.add(task);
+          return box;
+        });
+
+    if (created[0] == null) {
+      queued.increment();
+      return result;
+    }
+    Mailbox box = created[0];
+    if (box.runNext()) {
+      box.resume();
+    }
+    return result;
+  }
+
+  /** Mutations submitted. */
+  long submitted() {
+    return submitted.sum();
+  }
+
+  /** Mutations that had to wait behind another mutation of the same device. */
+  long queued() {
+    return queued.sum();
+  }
+
+  /** Times a mailbox was passed to the pool. */
+  long handOffs() {
+    return handOffs.sum();
+  }
+
+  /** Mutations submitted but not yet finished. */
+  long pending() {
+    return pending.get();
+  }
+
+  /** Devices with mutations submitted but not yet finished. */
+  int size() {
+    return mailboxes.size();
+  }
+
+  void exportMetrics(Metrics metrics) {
+    metrics.counter(
+        "smarthome_mailbox_submitted_total", "Device mutations submitted.", this::submitted);
+    metrics.counter(
+        "smarthome_mailbox_queued_total",
+        "Device mutations that waited behind another one for the same device.",
+        this::queued);
+    metrics.counter(
+        "smarthome_mailbox_hand_offs_total", "Mailboxes passed to the pool.", this::handOffs);
+    metrics.gauge(
+        "smarthome_mailbox_pending", "Device mutations not yet finished.", this::pending);
+  }
+}
@@ -0,0 +1,157 @@
+/*
+ * Copyright 2019 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ExecutionException;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.api.core.ApiFuture;
+import com.google.gson.Gson;
+import com.google.gson.JsonParseException;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+
+/**
+ * Creates many devices from one request body: either a JSON array or a stream of newline-delimited
+ * JSON objects, each shaped like a single {@code /smarthome/create} body, {@code {"userId": ...,
+ * "data": {"deviceId": ..., ...}}}. Devices are written through one {@link DeviceStore.Batch} as
+ * they are read, and each gets its own result.
+ */
+final class DeviceProvisioner {
+  private static final Logger LOGGER = LoggerFactory.getLogger(MySmartHomeApp.class);
+  private static final Gson GSON = new Gson();
+
+  private final MyDataStore database;
+
+  /** The outcome of one device, in the order the devices were read. */
+  static final class Result {
+    final String userId;
+    final String deviceId;
+    String status;
+    String error;
+
+    Result(String userId, String deviceId) {
+      this.userId = userId;
+      this.deviceId = deviceId;
+    }
+  }
+
+  static final class Report {
+    int succeeded;
+    int failed;
+    /** Why reading stopped before the end of the body, if it did. */
+    String error;
+
+    final List<Result> devices = new ArrayList<>();
+    /** Users with at least one device written. */
+    final transient Set<String> users = new TreeSet<>();
+    transient boolean tooLarge;
+  }
+
+  DeviceProvisioner(MyDataStore database) {
+    this.database = database;
+  }
+
+  Report provision(JsonReader body) throws InterruptedException {
+    body.setLenient(true);
+    Report report = new Report();
+    List<ApiFuture<?>> writes = new ArrayList<>();
+    DeviceStore.Batch batch = database.newBatch();
+    try {
+      boolean array = body.peek() == JsonToken.BEGIN_ARRAY;
+      if (array) {
+        body.beginArray();
+      }
+      while (array ? body.hasNext() : body.peek() != JsonToken.END_DOCUMENT) {
+        Map<String, Object> device = GSON.fromJson(body, HashMap.class);
+        Result result = result(device);
+        report.devices.add(result);
+        writes.add(result.error == null ? batch.addDevice(result.userId, data(device)) : null);
+      }
+      if (array) {
+        body.endArray();
+      }
+    } catch (IOException | JsonParseException | IllegalStateException e) {
+      // Devices read so far are still written; the body is only read up to the failure.
+      for (Throwable cause = e; cause != null; cause = cause.getCause()) {
+        report.tooLarge |= cause instanceof RequestBodies.TooLargeException;
+      }
+      report.error = e.getMessage();
+    } finally {
+      try {
+        batch.close();
+      } catch (ExecutionException e) {
+        LOGGER.error("failed to flush device batch", e.getCause());
+      }
+    }
+
+    for (int i = 0; i < writes.size(); i++) {
+      Result result = report.devices.get(i);
+      ApiFuture<?> write = writes.get(i);
+      if (write != null) {
+        try {
+          write.get();
+        } catch (ExecutionException e) {
+          LOGGER.error("adding device {} failed: {}", result.deviceId, e.getCause());
+          result.error = String.valueOf(e.getCause().getMessage());
+        }
+      }
+      if (result.error == null) {
+        result.status = "SUCCESS";
+        report.succeeded++;
+        report.users.add(result.userId);
+      } else {
+        result.status = "ERROR";
+        report.failed++;
+      }
+    }
+    return report;
+  }
+
+  private static Result result(Map<String, Object> device) {
+    Object userId = device != null ? device.get("userId") : null;
+    Map<String, Object> data = device != null ? data(device) : null;
+    Object deviceId = data != null ? data.get("deviceId") : null;
+    Result result =
+        new Result(
+            userId instanceof String ? (String) userId : null,
+            deviceId instanceof String ? (String) deviceId : null);
+    if (result.userId == null) {
+      result.error = "missing userId";
+    } else if (data == null) {
+      result.error = "missing data";
+    } else if (result.deviceId == null) {
+      result.error = "missing data.deviceId";
+    }
+    return result;
+  }
+
+  @SuppressWarnings("unchecked")
+  private static Map<String, Object> data(Map<String, Object> device) {
+    Object data = device.get("data");
+    return data instanceof Map ? (Map<String, Object>) data : null;
+  }
+}
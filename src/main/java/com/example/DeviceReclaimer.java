@@ -0,0 +1,230 @@
+/*
+ * Copyright 2019 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.api.core.ApiFuture;
+
+/**
+ * Deletes devices in the background, one job at a time, writing {@code smarthome.delete.chunkSize}
+ * deletes per {@link DeviceStore.Batch}. A job deletes devices of one user by id, by roomHint, or
+ * all of them, and its progress can be looked up by id while it runs and for a while after. Reports
+ * of deleted devices still waiting in a {@link ReportStateBatcher} are discarded. Each delete
+ * waits for the device's queued mutations, like {@link MyDataStore#deleteDevice}, so a command in
+ * flight cannot write the device back.
+ */
+final class DeviceReclaimer {
+  private static final Logger LOGGER = LoggerFactory.getLogger(MySmartHomeApp.class);
+  // The most recent jobs kept for progress lookups.
+  private static final int MAX_JOBS = 1000;
+  private static DeviceReclaimer instance;
+
+  private final MyDataStore database;
+  private final int chunkSize;
+  private final ExecutorService executor;
+  private final AtomicLong lastJobId = new AtomicLong();
+  private final Map<String, Job> jobs =
+      new LinkedHashMap<String, Job>() {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Job> eldest) {
+          return size() > MAX_JOBS;
+        }
+      };
+
+  private final LongAdder deleted = new LongAdder();
+  private final LongAdder failed = new LongAdder();
+
+  /** A deletion and its progress, serialized as the progress report. */
+  static final class Job {
+    final String id;
+    final String userId;
+    /** PENDING, RUNNING, DONE or FAILED. */
+    volatile String status = "PENDING";
+    /** Devices selected, known once the job runs. */
+    volatile int total = -1;
+    volatile int deleted;
+    volatile int failed;
+    volatile String error;
+
+    final transient CompletableFuture<Job> done = new CompletableFuture<>();
+
+    Job(String id, String userId) {
+      this.id = id;
+      this.userId = userId;
+    }
+  }
+
+  DeviceReclaimer(MyDataStore database, int chunkSize) {
+    this.database = database;
+    this.chunkSize = Math.max(1, chunkSize);
+    this.executor =
+        Executors.newSingleThreadExecutor(
+            runnable -> {
+              Thread thread = new Thread(runnable, "device-reclaimer");
+              thread.setDaemon(true);
+              return thread;
+            });
+  }
+
+  static synchronized DeviceReclaimer getInstance() {
+    if (instance == null) {
+      instance =
+          new DeviceReclaimer(
+              MyDataStore.getInstance(), Config.getInt("smarthome.delete.chunkSize", 500));
+      instance.exportMetrics(Metrics.getInstance());
+    }
+    return instance;
+  }
+
+  /** Deletes the given devices of a user. */
+  Job deleteDevices(String userId, Collection<String> deviceIds, Consumer<Job> onDone) {
+    List<String> ids = new ArrayList<>(deviceIds);
+    return submit(userId, () -> ids, onDone);
+  }
+
+  /** Deletes every device of a user whose roomHint is {@code roomHint}. */
+  Job deleteRoom(String userId, String roomHint, Consumer<Job> onDone) {
+    return submit(
+        userId,
+        () -> {
+          List<String> ids = new ArrayList<>();
+          for (DeviceDocument device : database.getDevices(userId)) {
+            if (roomHint.equals(device.get("roomHint"))) {
+              ids.add(device.getId());
+            }
+          }
+          return ids;
+        },
+        onDone);
+  }
+
+  /** Deletes every device of a user. */
+  Job deleteAll(String userId, Consumer<Job> onDone) {
+    return submit(
+        userId,
+        () -> {
+          List<String> ids = new ArrayList<>();
+          for (DeviceDocument device : database.getDevices(userId)) {
+            ids.add(device.getId());
+          }
+          return ids;
+        },
+        onDone);
+  }
+
+  /** Returns a job started within the last {@value #MAX_JOBS} jobs, or null. */
+  Job getJob(String id) {
+    synchronized (jobs) {
+      return jobs.get(id);
+    }
+  }
+
+  private Job submit(String userId, Callable<List<String>> select, Consumer<Job> onDone) {
+    Job job = new Job(Long.toString(lastJobId.incrementAndGet()), userId);
+    synchronized (jobs) {
+      jobs.put(job.id, job);
+    }
+    executor.execute(
+        () -> {
+          try {
+            run(job, select);
+          } finally {
+            if (onDone != null) {
+              try {
+                onDone.accept(job);
+              } catch (RuntimeException e) {
+                LOGGER.error("device deletion callback failed", e);
+              }
+            }
+            job.done.complete(job);
+          }
+        });
+    return job;
+  }
+
+  private void run(Job job, Callable<List<String>> select) {
+    job.status = "RUNNING";
+    try {
+      List<String> ids = select.call();
+      job.total = ids.size();
+      for (int from = 0; from < ids.size(); from += chunkSize) {
+        deleteChunk(job, ids.subList(from, Math.min(from + chunkSize, ids.size())));
+      }
+      job.status = "DONE";
+      LOGGER.info("deleted {} devices of user {}, {} failed", job.deleted, job.userId, job.failed);
+    } catch (Exception e) {
+      if (e instanceof InterruptedException) {
+        Thread.currentThread().interrupt();
+      }
+      LOGGER.error("deleting devices of user {} failed", job.userId, e);
+      job.error = String.valueOf(e.getMessage());
+      job.status = "FAILED";
+    }
+  }
+
+  private void deleteChunk(Job job, List<String> deviceIds)
+      throws ExecutionException, InterruptedException {
+    List<ApiFuture<?>> deletes = new ArrayList<>(deviceIds.size());
+    DeviceStore.Batch batch = database.newBatch();
+    try {
+      for (String deviceId : deviceIds) {
+        deletes.add(batch.deleteDevice(job.userId, deviceId));
+      }
+    } finally {
+      batch.close();
+    }
+    List<String> gone = new ArrayList<>(deviceIds.size());
+    for (int i = 0; i < deviceIds.size(); i++) {
+      try {
+        deletes.get(i).get();
+        gone.add(deviceIds.get(i));
+      } catch (ExecutionException e) {
+        LOGGER.error("deleting device {} failed", deviceIds.get(i), e.getCause());
+        job.failed++;
+        failed.increment();
+      }
+    }
+    ReportStateBatcher.discardAll(job.userId, gone);
+    job.deleted += gone.size();
+    deleted.add(gone.size());
+  }
+
+  void exportMetrics(Metrics metrics) {
+    metrics.counter(
+        "smarthome_reclaimed_devices_total", "Devices deleted in the background.", deleted::sum);
+    metrics.counter(
+        "smarthome_reclaim_failures_total",
+        "Background device deletes that failed.",
+        failed::sum);
+  }
+}
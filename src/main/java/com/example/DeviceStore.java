@@ -0,0 +1,178 @@
+/*
+ * Copyright 2019 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+
+import com.google.actions.api.smarthome.ExecuteRequest;
+import com.google.api.core.ApiFuture;
+import com.google.api.core.ApiFutures;
+
+/**
+ * Storage backend for users and their devices. {@link MyDataStore} delegates to the
+ * implementation selected by the {@code smarthome.store} setting at startup.
+ */
+public interface DeviceStore {
+
+  /** Batched writes to many devices, possibly of several users. */
+  interface Batch extends AutoCloseable {
+
+    /**
+     * Queues a device to be written like {@link DeviceStore#addDevice}.
+     *
+     * @return A future completed once this device has been written, or with its failure
+     */
+    ApiFuture<?> addDevice(String userId, Map<String, Object> data);
+
+    /**
+     * Queues a replacement of a device's states, like {@link DeviceStore#updateDevice} without
+     * params. Writes queued in one batch may be applied in any order.
+     */
+    ApiFuture<?> updateStates(String userId, String deviceId, Map<String, Object> states);
+
+    /** Queues a device to be deleted like {@link DeviceStore#deleteDevice}. */
+    ApiFuture<?> deleteDevice(String userId, String deviceId);
+
+    /** Starts writing everything queued so far, without waiting for it. */
+    default void flush() {}
+
+    /** Writes everything still queued and waits for it. */
+    @Override
+    void close() throws ExecutionException, InterruptedException;
+  }
+
+  /**
+   * Opens whatever connection the store needs, so that the first real request does not pay for
+   * it. Stores with nothing to open need not override this.
+   */
+  default void warmUp() throws ExecutionException, InterruptedException {}
+
+  List<DeviceDocument> getDevices(String userId) throws ExecutionException, InterruptedException;
+
+  /**
+   * Resolves the user owning an access token.
+   *
+   * @param token The raw {@code Authorization} header value, e.g. "Bearer 123access"
+   */
+  String getUserId(String token) throws ExecutionException, InterruptedException;
+
+  /** Forgets any cached resolution of a token, e.g. once its user unlinked their account. */
+  void invalidateToken(String token);
+
+  Boolean isHomegraphEnabled(String userId) throws ExecutionException, InterruptedException;
+
+  void setHomegraph(String userId, Boolean enable);
+
+  void addUser(String userId, Map<String, Object> data)
+      throws ExecutionException, InterruptedException;
+
+  void deleteUser(String userId) throws ExecutionException, InterruptedException;
+
+  /**
+   * Replaces a device's states and sets or, for null values, removes the given params, all in one
+   * atomic write.
+   *
+   * @param states The new states, or null to leave them alone
+   * @param params Values of name, nickname, errorCode, tfa and localDeviceId
+   * @return The document fields changed, e.g. "states" or "otherDeviceIds"; every requested field
+   *     is written, but stores may leave out fields they know already held the requested value
+   */
+  Set<String> updateDevice(
+      String userId, String deviceId, Map<String, Object> states, Map<String, String> params)
+      throws ExecutionException, InterruptedException;
+
+  void addDevice(String userId, Map<String, Object> data)
+      throws ExecutionException, InterruptedException;
+
+  void deleteDevice(String userId, String deviceId)
+      throws ExecutionException, InterruptedException;
+
+  /**
+   * Starts a batch of device writes. Stores that cannot batch write each device as it is added.
+   */
+  default Batch newBatch() {
+    return new Batch() {
+      @Override
+      public ApiFuture<?> addDevice(String userId, Map<String, Object> data) {
+        try {
+          DeviceStore.this.addDevice(userId, data);
+          return ApiFutures.immediateFuture(null);
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+          return ApiFutures.immediateFailedFuture(e);
+        } catch (Exception e) {
+          return ApiFutures.immediateFailedFuture(e);
+        }
+      }
+
+      @Override
+      public ApiFuture<?> updateStates(
+          String userId, String deviceId, Map<String, Object> states) {
+        try {
+          DeviceStore.this.updateDevice(userId, deviceId, states, Collections.emptyMap());
+          return ApiFutures.immediateFuture(null);
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+          return ApiFutures.immediateFailedFuture(e);
+        } catch (Exception e) {
+          return ApiFutures.immediateFailedFuture(e);
+        }
+      }
+
+      @Override
+      public ApiFuture<?> deleteDevice(String userId, String deviceId) {
+        try {
+          DeviceStore.this.deleteDevice(userId, deviceId);
+          return ApiFutures.immediateFuture(null);
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+          return ApiFutures.immediateFailedFuture(e);
+        } catch (Exception e) {
+          return ApiFutures.immediateFailedFuture(e);
+        }
+      }
+
+      @Override
+      public void close() {}
+    };
+  }
+
+  Map<String, Object> getState(String userId, String deviceId)
+      throws ExecutionException, InterruptedException;
+
+  /**
+   * Returns the states of several devices of one user in a single backend round trip.
+   *
+   * @return States keyed by device id; devices that do not exist are left out
+   */
+  Map<String, Map<String, Object>> getStates(String userId, List<String> deviceIds)
+      throws ExecutionException, InterruptedException;
+
+  /**
+   * Applies a single EXECUTE command to a device.
+   *
+   * @return The device states to report back to the Assistant
+   * @throws Exception whose message is the errorCode to return for this device
+   */
+  Map<String, Object> execute(
+      String userId, String deviceId, ExecuteRequest.Inputs.Payload.Commands.Execution execution)
+      throws Exception;
+}
@@ -0,0 +1,120 @@
+/*
+ * Copyright 2019 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Runs the per-device work of one EXECUTE request concurrently on a shared, bounded pool of
+ * {@code smarthome.execute.threads} threads. A single request occupies at most {@code
+ * smarthome.execute.concurrency} of them, so one large request cannot starve the others or flood
+ * the store. When the pool is saturated the request thread runs the work itself.
+ */
+final class ExecuteFanOut {
+  private static ExecuteFanOut instance;
+
+  private final ThreadPoolExecutor executor;
+  private final int concurrency;
+
+  ExecuteFanOut(int threads, int concurrency) {
+    this.concurrency = Math.max(1, concurrency);
+    if (threads <= 0) {
+      this.executor = null;
+      return;
+    }
+    AtomicInteger count = new AtomicInteger();
+    ThreadFactory threadFactory =
+        runnable -> {
+          Thread thread = new Thread(runnable, "execute-" + count.incrementAndGet());
+          thread.setDaemon(true);
+          return thread;
+        };
+    this.executor =
+        new ThreadPoolExecutor(
+            threads,
+            threads,
+            60,
+            TimeUnit.SECONDS,
+            new ArrayBlockingQueue<>(threads * 4),
+            threadFactory,
+            new ThreadPoolExecutor.CallerRunsPolicy());
+    this.executor.allowCoreThreadTimeOut(true);
+  }
+
+  static synchronized ExecuteFanOut getInstance() {
+    if (instance == null) {
+      instance =
+          new ExecuteFanOut(
+              Config.getInt("smarthome.execute.threads", 32),
+              Config.getInt("smarthome.execute.concurrency", 8));
+    }
+    return instance;
+  }
+
+  /**
+   * Runs every task and waits for all of them.
+   *
+   * @return Completed futures holding each task's result or failure, in the order of {@code tasks}
+   */
+  <T> List<CompletableFuture<T>> invokeAll(List<Callable<T>> tasks)
+      throws InterruptedException {
+    List<CompletableFuture<T>> results = new ArrayList<>(tasks.size());
+    if (executor == null || tasks.size() == 1) {
+      // Nothing to overlap with: skip the hand-off to the pool.
+      for (Callable<T> task : tasks) {
+        CompletableFuture<T> result = new CompletableFuture<>();
+        run(task, result);
+        results.add(result);
+      }
+      return results;
+    }
+
+    Semaphore permits = new Semaphore(concurrency);
+    for (Callable<T> task : tasks) {
+      CompletableFuture<T> result = new CompletableFuture<>();
+      results.add(result);
+      permits.acquire();
+      executor.execute(
+          () -> {
+            try {
+              run(task, result);
+            } finally {
+              permits.release();
+            }
+          });
+    }
+    permits.acquire(concurrency);
+    return results;
+  }
+
+  private static <T> void run(Callable<T> task, CompletableFuture<T> result) {
+    try {
+      result.complete(task.call());
+    } catch (Throwable t) {
+      result.completeExceptionally(t);
+    }
+  }
+}
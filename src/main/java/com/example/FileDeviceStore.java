@@ -0,0 +1,196 @@
+/*
+ * Copyright 2019 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example;
+
+import java.io.BufferedReader;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParseException;
+import com.google.gson.JsonParser;
+import com.google.gson.ToNumberPolicy;
+
+/**
+ * Embedded {@link DeviceStore} that serves reads from memory and persists every mutation to an
+ * append-only journal of JSON lines. The journal is replayed and compacted when the store opens,
+ * so data survives restarts without any external database.
+ */
+public class FileDeviceStore extends InMemoryDeviceStore {
+
+  private static final Logger LOGGER = LoggerFactory.getLogger(MySmartHomeApp.class);
+  // Integral numbers come back as Long, as they do from Firestore.
+  private static final Gson GSON =
+      new GsonBuilder().setObjectToNumberStrategy(ToNumberPolicy.LONG_OR_DOUBLE).create();
+
+  private final Path path;
+  private final boolean fsync;
+  private FileOutputStream out;
+  private Writer journal;
+  private boolean replaying;
+
+  public FileDeviceStore(Path path) throws IOException {
+    this(path, Config.getBoolean("smarthome.store.fsync", false));
+  }
+
+  public FileDeviceStore(Path path, boolean fsync) throws IOException {
+    this.path = path;
+    this.fsync = fsync;
+    if (Files.exists(path)) {
+      replay();
+    }
+    compact();
+    out = new FileOutputStream(path.toFile(), true);
+    journal = new OutputStreamWriter(out, StandardCharsets.UTF_8);
+  }
+
+  private void replay() throws IOException {
+    replaying = true;
+    int lineNumber = 0;
+    try (BufferedReader reader = Files.newBufferedReader(path, StandardCharsets.UTF_8)) {
+      String line;
+      while ((line = reader.readLine()) != null) {
+        lineNumber++;
+        if (line.isEmpty()) {
+          continue;
+        }
+        try {
+          apply(JsonParser.parseString(line).getAsJsonObject());
+        } catch (JsonParseException | IllegalStateException e) {
+          // A torn final write is expected after a crash; anything before it is kept.
+          LOGGER.error("skipping unreadable journal entry {} in {}", lineNumber, path);
+        }
+      }
+    } finally {
+      replaying = false;
+    }
+  }
+
+  @SuppressWarnings("unchecked")
+  private void apply(JsonObject entry) {
+    String op = entry.get("op").getAsString();
+    String userId = entry.get("userId").getAsString();
+    String deviceId = entry.has("deviceId") ? entry.get("deviceId").getAsString() : null;
+    Map<String, Object> data =
+        entry.has("data") ? GSON.fromJson(entry.get("data"), HashMap.class) : null;
+    switch (op) {
+      case "putUser":
+        addUser(userId, data);
+        break;
+      case "deleteUser":
+        deleteUser(userId);
+        break;
+      case "putDevice":
+        addDevice(userId, data);
+        break;
+      case "deleteDevice":
+        deleteDevice(userId, deviceId);
+        break;
+      case "updateDevice":
+        if (entry.has("deletes")) {
+          for (JsonElement field : entry.getAsJsonArray("deletes")) {
+            data.put(field.getAsString(), DELETE);
+          }
+        }
+        updateFields(userId, deviceId, data);
+        break;
+      default:
+        LOGGER.error("unknown journal operation {}", op);
+    }
+  }
+
+  /** Rewrites the journal as the minimal set of entries that reproduces the current contents. */
+  private void compact() throws IOException {
+    Path tmp = Paths.get(path.toString() + ".tmp");
+    try (Writer writer = Files.newBufferedWriter(tmp, StandardCharsets.UTF_8)) {
+      for (Map.Entry<String, Map<String, Object>> user : users.entrySet()) {
+        writer.write(entry("putUser", user.getKey(), null, user.getValue()));
+      }
+      for (Map.Entry<String, ? extends Map<String, Map<String, Object>>> userDevices :
+          devices.entrySet()) {
+        for (Map.Entry<String, Map<String, Object>> device : userDevices.getValue().entrySet()) {
+          writer.write(
+              entry("putDevice", userDevices.getKey(), device.getKey(), device.getValue()));
+        }
+      }
+    }
+    Files.move(tmp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+  }
+
+  private static String entry(
+      String op, String userId, String deviceId, Map<String, Object> data) {
+    JsonObject entry = new JsonObject();
+    entry.addProperty("op", op);
+    entry.addProperty("userId", userId);
+    if (deviceId != null) {
+      entry.addProperty("deviceId", deviceId);
+    }
+    if (data != null) {
+      Map<String, Object> values = new HashMap<>();
+      List<String> deletes = new ArrayList<>();
+      for (Map.Entry<String, Object> field : data.entrySet()) {
+        if (field.getValue() == DELETE) {
+          deletes.add(field.getKey());
+        } else {
+          values.put(field.getKey(), field.getValue());
+        }
+      }
+      entry.add("data", GSON.toJsonTree(values));
+      if (!deletes.isEmpty()) {
+        entry.add("deletes", GSON.toJsonTree(deletes));
+      }
+    }
+    return entry.toString() + "\n";
+  }
+
+  @Override
+  protected void mutated(String op, String userId, String deviceId, Map<String, Object> data) {
+    if (replaying) {
+      return;
+    }
+    String line = entry(op, userId, deviceId, data);
+    synchronized (this) {
+      try {
+        journal.write(line);
+        journal.flush();
+        if (fsync) {
+          out.getChannel().force(false);
+        }
+      } catch (IOException e) {
+        throw new UncheckedIOException("failed to append to " + path, e);
+      }
+    }
+  }
+}
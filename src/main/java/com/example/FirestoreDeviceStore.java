@@ -0,0 +1,381 @@
+/*
+ * Copyright 2019 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.api.core.ApiFuture;
+import com.google.api.core.ApiFutureCallback;
+import com.google.api.core.ApiFutures;
+import com.google.api.core.SettableApiFuture;
+import com.google.api.gax.rpc.ApiException;
+import com.google.api.gax.rpc.StatusCode;
+import com.google.auth.oauth2.GoogleCredentials;
+import com.google.cloud.Timestamp;
+import com.google.cloud.firestore.BulkWriter;
+import com.google.cloud.firestore.CollectionReference;
+import com.google.cloud.firestore.DocumentReference;
+import com.google.cloud.firestore.DocumentSnapshot;
+import com.google.cloud.firestore.FieldValue;
+import com.google.cloud.firestore.Firestore;
+import com.google.cloud.firestore.FirestoreException;
+import com.google.cloud.firestore.Precondition;
+import com.google.cloud.firestore.QueryDocumentSnapshot;
+import com.google.cloud.firestore.QuerySnapshot;
+import com.google.cloud.firestore.WriteResult;
+import com.google.firebase.FirebaseApp;
+import com.google.firebase.FirebaseOptions;
+import com.google.firebase.cloud.FirestoreClient;
+
+import io.grpc.Status;
+
+/**
+ * {@link DeviceStore} backed by Cloud Firestore, storing devices under users/{userId}/devices.
+ * Device documents are cached in process (see {@link DeviceCache}), as this app is their only
+ * writer; {@code smarthome.cache.devices.size} and {@code smarthome.cache.devices.ttlMs} bound the
+ * cache, and a size of 0 disables it.
+ *
+ * <p>Conditional writes carry an update-time precondition. Documents served from the cache have
+ * no update time, so commands that write conditionally read the document from Firestore first.
+ */
+public class FirestoreDeviceStore extends AbstractDeviceStore {
+
+  private static final Logger LOGGER = LoggerFactory.getLogger(MySmartHomeApp.class);
+  final Firestore database;
+  private final DeviceCache deviceCache =
+      new DeviceCache(
+          Config.getInt("smarthome.cache.devices.size", 10000),
+          Config.getLong("smarthome.cache.devices.ttlMs", 60000),
+          TimeUnit.MILLISECONDS);
+
+  public FirestoreDeviceStore() {
+    // Use a service account
+    try {
+      GoogleCredentials credentials = GoogleCredentials.getApplicationDefault();
+      String projectId = System.getenv("GOOGLE_CLOUD_PROJECT");
+      FirebaseOptions options =
+          new FirebaseOptions.Builder().setCredentials(credentials).setProjectId(projectId).build();
+      FirebaseApp.initializeApp(options);
+      database = FirestoreClient.getFirestore();
+    } catch (Exception e) {
+      LOGGER.error("ERROR: invalid service account credentials. See README.");
+      LOGGER.error(e.getMessage());
+
+      throw new RuntimeException(e);
+    }
+  }
+
+  public FirestoreDeviceStore(Firestore database) {
+    this.database = database;
+  }
+
+  DeviceCache getDeviceCache() {
+    return deviceCache;
+  }
+
+  /** Reads a document that need not exist, which opens the gRPC channel and authenticates it. */
+  @Override
+  public void warmUp() throws ExecutionException, InterruptedException {
+    database.collection("users").document("_warmup").get().get();
+  }
+
+  private CollectionReference devices(String userId) {
+    return database.collection("users").document(userId).collection("devices");
+  }
+
+  @Override
+  public List<DeviceDocument> getDevices(String userId)
+      throws ExecutionException, InterruptedException {
+    ApiFuture<QuerySnapshot> deviceQuery = devices(userId).get();
+    List<DeviceDocument> devices = new ArrayList<>();
+    for (QueryDocumentSnapshot device : deviceQuery.get().getDocuments()) {
+      devices.add(new DeviceDocument(device.getId(), device.getData()));
+    }
+    return devices;
+  }
+
+  @Override
+  protected String findUserIdByAccessToken(String accessToken)
+      throws ExecutionException, InterruptedException {
+    ApiFuture<QuerySnapshot> userQuery =
+        database.collection("users").whereEqualTo("fakeAccessToken", accessToken).get();
+    List<QueryDocumentSnapshot> users = userQuery.get().getDocuments();
+    return users.isEmpty() ? null : users.get(0).getId();
+  }
+
+  @Override
+  public Boolean isHomegraphEnabled(String userId) throws ExecutionException, InterruptedException {
+    DocumentSnapshot user = database.collection("users").document(userId).get().get();
+    return (Boolean) user.get("homegraph");
+  }
+
+  @Override
+  public void setHomegraph(String userId, Boolean enable) {
+    DocumentReference user = database.collection("users").document(userId);
+    user.update("homegraph", enable);
+  }
+
+  @Override
+  public void addUser(String userId, Map<String, Object> data)
+      throws ExecutionException, InterruptedException {
+    database.collection("users").document(userId).set(data).get();
+    invalidateUser(userId, data);
+  }
+
+  @Override
+  public void deleteUser(String userId) throws ExecutionException, InterruptedException {
+    database.collection("users").document(userId).delete().get();
+    invalidateUser(userId, null);
+    deviceCache.invalidateUser(userId);
+  }
+
+  @Override
+  public void addDevice(String userId, Map<String, Object> data)
+      throws ExecutionException, InterruptedException {
+    String deviceId = (String) data.get("deviceId");
+    devices(userId).document(deviceId).set(data).get();
+    deviceCache.put(userId, deviceId, data);
+  }
+
+  /**
+   * Writes through a Firestore BulkWriter, which sends up to 20 writes per request, several
+   * requests at a time, and retries writes that fail transiently.
+   */
+  @Override
+  public Batch newBatch() {
+    BulkWriter writer = database.bulkWriter();
+    return new Batch() {
+      @Override
+      public ApiFuture<?> addDevice(String userId, Map<String, Object> data) {
+        String deviceId = (String) data.get("deviceId");
+        ApiFuture<WriteResult> write = writer.set(devices(userId).document(deviceId), data);
+        ApiFutures.addCallback(
+            write,
+            new ApiFutureCallback<WriteResult>() {
+              @Override
+              public void onFailure(Throwable t) {
+                deviceCache.invalidate(userId, deviceId);
+              }
+
+              @Override
+              public void onSuccess(WriteResult result) {
+                deviceCache.put(userId, deviceId, data);
+              }
+            },
+            Runnable::run);
+        return write;
+      }
+
+      @Override
+      public ApiFuture<?> updateStates(
+          String userId, String deviceId, Map<String, Object> states) {
+        Map<String, Object> fields = Collections.singletonMap("states", states);
+        ApiFuture<WriteResult> write = writer.update(devices(userId).document(deviceId), fields);
+        ApiFutures.addCallback(
+            write,
+            new ApiFutureCallback<WriteResult>() {
+              @Override
+              public void onFailure(Throwable t) {
+                deviceCache.invalidate(userId, deviceId);
+              }
+
+              @Override
+              public void onSuccess(WriteResult result) {
+                deviceCache.update(userId, deviceId, fields);
+              }
+            },
+            Runnable::run);
+        return write;
+      }
+
+      @Override
+      public ApiFuture<?> deleteDevice(String userId, String deviceId) {
+        deviceCache.invalidate(userId, deviceId);
+        ApiFuture<WriteResult> delete = writer.delete(devices(userId).document(deviceId));
+        // Also drop anything cached while the delete was in flight.
+        delete.addListener(() -> deviceCache.invalidate(userId, deviceId), Runnable::run);
+        return delete;
+      }
+
+      @Override
+      public void flush() {
+        writer.flush();
+      }
+
+      @Override
+      public void close() throws ExecutionException, InterruptedException {
+        writer.close();
+      }
+    };
+  }
+
+  @Override
+  public void deleteDevice(String userId, String deviceId)
+      throws ExecutionException, InterruptedException {
+    devices(userId).document(deviceId).delete().get();
+    deviceCache.invalidate(userId, deviceId);
+  }
+
+  @Override
+  protected DeviceDocument getDevice(String userId, String deviceId)
+      throws ExecutionException, InterruptedException {
+    Map<String, Object> cached = deviceCache.get(userId, deviceId);
+    if (cached != null) {
+      return new DeviceDocument(deviceId, cached);
+    }
+    return getDeviceForUpdate(userId, deviceId);
+  }
+
+  @Override
+  protected DeviceDocument getLocalDevice(String userId, String deviceId) {
+    Map<String, Object> cached = deviceCache.get(userId, deviceId);
+    return cached != null ? new DeviceDocument(deviceId, cached) : null;
+  }
+
+  @Override
+  protected DeviceDocument getDeviceForUpdate(String userId, String deviceId)
+      throws ExecutionException, InterruptedException {
+    long token = deviceCache.beginLoad(userId, deviceId);
+    DocumentSnapshot device = devices(userId).document(deviceId).get().get();
+    if (!device.exists()) {
+      return null;
+    }
+    deviceCache.load(userId, deviceId, token, device.getData());
+    return new DeviceDocument(device.getId(), device.getData(), device.getUpdateTime());
+  }
+
+  @Override
+  protected Map<String, DeviceDocument> getDevicesById(String userId, List<String> deviceIds)
+      throws ExecutionException, InterruptedException {
+    Map<String, DeviceDocument> found = new HashMap<>();
+    List<String> missed = new ArrayList<>();
+    List<Long> tokens = new ArrayList<>();
+    for (String deviceId : deviceIds) {
+      Map<String, Object> cached = deviceCache.get(userId, deviceId);
+      if (cached != null) {
+        found.put(deviceId, new DeviceDocument(deviceId, cached));
+      } else if (!missed.contains(deviceId)) {
+        missed.add(deviceId);
+        tokens.add(deviceCache.beginLoad(userId, deviceId));
+      }
+    }
+    if (missed.isEmpty()) {
+      return found;
+    }
+
+    DocumentReference[] refs = new DocumentReference[missed.size()];
+    for (int i = 0; i < refs.length; i++) {
+      refs[i] = devices(userId).document(missed.get(i));
+    }
+    List<DocumentSnapshot> snapshots = database.getAll(refs).get();
+    for (int i = 0; i < snapshots.size(); i++) {
+      DocumentSnapshot device = snapshots.get(i);
+      if (device.exists()) {
+        // getAll returns snapshots in the order of the references.
+        deviceCache.load(userId, device.getId(), tokens.get(i), device.getData());
+        found.put(
+            device.getId(),
+            new DeviceDocument(device.getId(), device.getData(), device.getUpdateTime()));
+      }
+    }
+    return found;
+  }
+
+  private static Map<String, Object> updates(Map<String, Object> fields) {
+    Map<String, Object> updates = new HashMap<>();
+    for (Map.Entry<String, Object> field : fields.entrySet()) {
+      Object value = field.getValue();
+      updates.put(field.getKey(), value == DELETE ? FieldValue.delete() : value);
+    }
+    return updates;
+  }
+
+  @Override
+  protected ApiFuture<Boolean> updateFieldsIfUnchanged(
+      String userId, DeviceDocument device, Map<String, Object> fields) {
+    String deviceId = device.getId();
+    Precondition unchanged = Precondition.updatedAt((Timestamp) device.getVersion());
+    ApiFuture<WriteResult> write =
+        devices(userId).document(deviceId).update(updates(fields), unchanged);
+    SettableApiFuture<Boolean> written = SettableApiFuture.create();
+    ApiFutures.addCallback(
+        write,
+        new ApiFutureCallback<WriteResult>() {
+          @Override
+          public void onFailure(Throwable t) {
+            deviceCache.invalidate(userId, deviceId);
+            if (isFailedPrecondition(t)) {
+              written.set(false);
+            } else {
+              written.setException(t);
+            }
+          }
+
+          @Override
+          public void onSuccess(WriteResult result) {
+            deviceCache.update(userId, deviceId, fields);
+            written.set(true);
+          }
+        },
+        Runnable::run);
+    return written;
+  }
+
+  private static boolean isFailedPrecondition(Throwable t) {
+    for (; t != null; t = t.getCause()) {
+      if (t instanceof ApiException
+          && ((ApiException) t).getStatusCode().getCode() == StatusCode.Code.FAILED_PRECONDITION) {
+        return true;
+      }
+      if (t instanceof FirestoreException
+          && ((FirestoreException) t).getStatus() != null
+          && ((FirestoreException) t).getStatus().getCode() == Status.Code.FAILED_PRECONDITION) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  @Override
+  protected ApiFuture<?> updateFields(String userId, String deviceId, Map<String, Object> fields) {
+    ApiFuture<WriteResult> write = devices(userId).document(deviceId).update(updates(fields));
+    deviceCache.update(userId, deviceId, fields);
+    ApiFutures.addCallback(
+        write,
+        new ApiFutureCallback<WriteResult>() {
+          @Override
+          public void onFailure(Throwable t) {
+            // The cached copy may now be ahead of Firestore.
+            deviceCache.invalidate(userId, deviceId);
+          }
+
+          @Override
+          public void onSuccess(WriteResult result) {}
+        },
+        Runnable::run);
+    return write;
+  }
+}
@@ -0,0 +1,251 @@
+/*
+ * Copyright 2019 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import com.google.api.core.ApiFuture;
+import com.google.api.core.ApiFutures;
+
+/**
+ * {@link DeviceStore} keeping every user and device in process memory. Documents are guarded by a
+ * fixed array of read/write locks picked by hashing the document key, so commands on different
+ * devices rarely contend while reads and writes of one device stay consistent. Every change to a
+ * device gives it a new version from a store-wide counter, which conditional writes compare.
+ */
+public class InMemoryDeviceStore extends AbstractDeviceStore {
+
+  private static final int STRIPES = 64;
+
+  final ConcurrentMap<String, Map<String, Object>> users = new ConcurrentHashMap<>();
+  final ConcurrentMap<String, ConcurrentMap<String, Map<String, Object>>> devices =
+      new ConcurrentHashMap<>();
+  private final ConcurrentMap<String, String> accessTokens = new ConcurrentHashMap<>();
+  private final ReadWriteLock[] locks = new ReadWriteLock[STRIPES];
+  // Device versions by versionKey; guarded by the device's lock.
+  private final ConcurrentMap<String, Long> versions = new ConcurrentHashMap<>();
+  private final AtomicLong lastVersion = new AtomicLong();
+
+  public InMemoryDeviceStore() {
+    for (int i = 0; i < STRIPES; i++) {
+      locks[i] = new ReentrantReadWriteLock();
+    }
+  }
+
+  private ReadWriteLock lockFor(String userId, String deviceId) {
+    int hash = userId.hashCode() * 31 + (deviceId != null ? deviceId.hashCode() : 0);
+    return locks[(hash ^ (hash >>> 16)) & (STRIPES - 1)];
+  }
+
+  private static String versionKey(String userId, String deviceId) {
+    return userId + '\u0000' + deviceId;
+  }
+
+  private void changed(String userId, String deviceId) {
+    versions.put(versionKey(userId, deviceId), lastVersion.incrementAndGet());
+  }
+
+  private ConcurrentMap<String, Map<String, Object>> devicesOf(String userId) {
+    return devices.computeIfAbsent(userId, k -> new ConcurrentHashMap<>());
+  }
+
+  /**
+   * Called with the affected document's write lock held after every mutation, so subclasses can
+   * persist mutations in the order they were applied.
+   */
+  protected void mutated(String op, String userId, String deviceId, Map<String, Object> data) {}
+
+  @Override
+  public List<DeviceDocument> getDevices(String userId) {
+    List<DeviceDocument> result = new ArrayList<>();
+    Map<String, Map<String, Object>> userDevices = devices.get(userId);
+    if (userDevices == null) {
+      return result;
+    }
+    for (String deviceId : userDevices.keySet()) {
+      DeviceDocument device = getDevice(userId, deviceId);
+      if (device != null) {
+        result.add(device);
+      }
+    }
+    return result;
+  }
+
+  @Override
+  protected String findUserIdByAccessToken(String accessToken) {
+    return accessTokens.get(accessToken);
+  }
+
+  @Override
+  public Boolean isHomegraphEnabled(String userId) {
+    ReadWriteLock lock = lockFor(userId, null);
+    lock.readLock().lock();
+    try {
+      Map<String, Object> user = users.get(userId);
+      return user != null ? (Boolean) user.get("homegraph") : null;
+    } finally {
+      lock.readLock().unlock();
+    }
+  }
+
+  @Override
+  public void setHomegraph(String userId, Boolean enable) {
+    ReadWriteLock lock = lockFor(userId, null);
+    lock.writeLock().lock();
+    try {
+      Map<String, Object> user = users.get(userId);
+      if (user != null) {
+        user.put("homegraph", enable);
+        mutated("putUser", userId, null, user);
+      }
+    } finally {
+      lock.writeLock().unlock();
+    }
+  }
+
+  @Override
+  public void addUser(String userId, Map<String, Object> data) {
+    ReadWriteLock lock = lockFor(userId, null);
+    lock.writeLock().lock();
+    try {
+      Map<String, Object> previous = users.put(userId, DeviceDocument.copyOf(data));
+      if (previous != null && previous.get("fakeAccessToken") != null) {
+        accessTokens.remove(previous.get("fakeAccessToken"), userId);
+      }
+      if (data.get("fakeAccessToken") != null) {
+        accessTokens.put((String) data.get("fakeAccessToken"), userId);
+      }
+      invalidateUser(userId, data);
+      mutated("putUser", userId, null, data);
+    } finally {
+      lock.writeLock().unlock();
+    }
+  }
+
+  @Override
+  public void deleteUser(String userId) {
+    ReadWriteLock lock = lockFor(userId, null);
+    lock.writeLock().lock();
+    try {
+      Map<String, Object> user = users.remove(userId);
+      if (user != null && user.get("fakeAccessToken") != null) {
+        accessTokens.remove(user.get("fakeAccessToken"), userId);
+      }
+      invalidateUser(userId, user);
+      mutated("deleteUser", userId, null, null);
+    } finally {
+      lock.writeLock().unlock();
+    }
+  }
+
+  @Override
+  public void addDevice(String userId, Map<String, Object> data) {
+    String deviceId = (String) data.get("deviceId");
+    ReadWriteLock lock = lockFor(userId, deviceId);
+    lock.writeLock().lock();
+    try {
+      devicesOf(userId).put(deviceId, DeviceDocument.copyOf(data));
+      changed(userId, deviceId);
+      mutated("putDevice", userId, deviceId, data);
+    } finally {
+      lock.writeLock().unlock();
+    }
+  }
+
+  @Override
+  public void deleteDevice(String userId, String deviceId) {
+    ReadWriteLock lock = lockFor(userId, deviceId);
+    lock.writeLock().lock();
+    try {
+      devicesOf(userId).remove(deviceId);
+      versions.remove(versionKey(userId, deviceId));
+      mutated("deleteDevice", userId, deviceId, null);
+    } finally {
+      lock.writeLock().unlock();
+    }
+  }
+
+  @Override
+  protected DeviceDocument getDevice(String userId, String deviceId) {
+    Map<String, Map<String, Object>> userDevices = devices.get(userId);
+    if (userDevices == null) {
+      return null;
+    }
+    ReadWriteLock lock = lockFor(userId, deviceId);
+    lock.readLock().lock();
+    try {
+      Map<String, Object> data = userDevices.get(deviceId);
+      if (data == null) {
+        return null;
+      }
+      Object version = versions.get(versionKey(userId, deviceId));
+      return new DeviceDocument(deviceId, DeviceDocument.copyOf(data), version);
+    } finally {
+      lock.readLock().unlock();
+    }
+  }
+
+  @Override
+  protected ApiFuture<?> updateFields(String userId, String deviceId, Map<String, Object> fields) {
+    ReadWriteLock lock = lockFor(userId, deviceId);
+    lock.writeLock().lock();
+    try {
+      Map<String, Object> data = devicesOf(userId).get(deviceId);
+      if (data == null) {
+        return ApiFutures.immediateFailedFuture(
+            new IllegalStateException("no device " + deviceId + " for user " + userId));
+      }
+      DeviceDocument.applyUpdates(data, fields);
+      changed(userId, deviceId);
+      mutated("updateDevice", userId, deviceId, fields);
+      return ApiFutures.immediateFuture(null);
+    } finally {
+      lock.writeLock().unlock();
+    }
+  }
+
+  @Override
+  protected ApiFuture<Boolean> updateFieldsIfUnchanged(
+      String userId, DeviceDocument device, Map<String, Object> fields) {
+    String deviceId = device.getId();
+    ReadWriteLock lock = lockFor(userId, deviceId);
+    lock.writeLock().lock();
+    try {
+      Map<String, Object> data = devicesOf(userId).get(deviceId);
+      if (data == null) {
+        return ApiFutures.immediateFailedFuture(
+            new IllegalStateException("no device " + deviceId + " for user " + userId));
+      }
+      if (!device.getVersion().equals(versions.get(versionKey(userId, deviceId)))) {
+        return ApiFutures.immediateFuture(false);
+      }
+      DeviceDocument.applyUpdates(data, fields);
+      changed(userId, deviceId);
+      mutated("updateDevice", userId, deviceId, fields);
+      return ApiFutures.immediateFuture(true);
+    } finally {
+      lock.writeLock().unlock();
+    }
+  }
+}
@@ -0,0 +1,115 @@
+/*
+ * Copyright 2019 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Lock-free latency histogram with fixed buckets doubling from 100 microseconds to about 52
+ * seconds, plus one for anything slower. Recording is a few LongAdder increments; percentiles are
+ * reported as the upper bound of the bucket they fall in.
+ */
+final class LatencyHistogram {
+  private static final long BASE_NANOS = TimeUnit.MICROSECONDS.toNanos(100);
+  static final int BUCKETS = 20;
+
+  // counts[BUCKETS] holds latencies above the largest bound.
+  private final LongAdder[] counts = new LongAdder[BUCKETS + 1];
+  private final LongAdder sumNanos = new LongAdder();
+  private final LongAccumulator maxNanos = new LongAccumulator(Math::max, 0);
+
+  LatencyHistogram() {
+    for (int i = 0; i < counts.length; i++) {
+      counts[i] = new LongAdder();
+    }
+  }
+
+  /** Upper bound of bucket {@code i}, in nanoseconds. */
+  static long upperBoundNanos(int i) {
+    return BASE_NANOS << i;
+  }
+
+  static int bucket(long nanos) {
+    if (nanos <= BASE_NANOS) {
+      return 0;
+    }
+    return Math.min(64 - Long.numberOfLeadingZeros((nanos - 1) / BASE_NANOS), BUCKETS);
+  }
+
+  void record(long nanos) {
+    nanos = Math.max(nanos, 0);
+    counts[bucket(nanos)].increment();
+    sumNanos.add(nanos);
+    maxNanos.accumulate(nanos);
+  }
+
+  /** Records the time elapsed since {@code startNanos}, a value of {@link System#nanoTime}. */
+  void recordSince(long startNanos) {
+    record(System.nanoTime() - startNanos);
+  }
+
+  /** Returns the count of each bucket, the last being the one above every bound. */
+  long[] snapshot() {
+    long[] snapshot = new long[counts.length];
+    for (int i = 0; i < counts.length; i++) {
+      snapshot[i] = counts[i].sum();
+    }
+    return snapshot;
+  }
+
+  long count() {
+    long count = 0;
+    for (LongAdder bucket : counts) {
+      count += bucket.sum();
+    }
+    return count;
+  }
+
+  long sumNanos() {
+    return sumNanos.sum();
+  }
+
+  long maxNanos() {
+    return maxNanos.get();
+  }
+
+  /** Returns the latency at or below which a fraction {@code q} of recordings fall, or 0. */
+  long percentileNanos(double q) {
+    return percentileNanos(snapshot(), q);
+  }
+
+  long percentileNanos(long[] snapshot, double q) {
+    long total = 0;
+    for (long count : snapshot) {
+      total += count;
+    }
+    if (total == 0) {
+      return 0;
+    }
+    long rank = Math.max(1, (long) Math.ceil(q * total));
+    long seen = 0;
+    for (int i = 0; i < BUCKETS; i++) {
+      seen += snapshot[i];
+      if (seen >= rank) {
+        return Math.min(upperBoundNanos(i), maxNanos());
+      }
+    }
+    return maxNanos();
+  }
+}
@@ -0,0 +1,231 @@
+/*
+ * Copyright 2019 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+
+/**
+ * Process-wide latency histograms, error counters and exported component counters, written in
+ * the Prometheus text format by {@link MetricsServlet}.
+ */
+final class Metrics {
+  private static final Metrics INSTANCE = new Metrics();
+  private static final double[] QUANTILES = {0.5, 0.9, 0.99};
+  // Label values that come from requests or exceptions are limited to known ones, so that clients
+  // cannot create series at will; anything else is counted under OTHER.
+  private static final String OTHER = "other";
+  private static final Set<String> ERROR_CODES =
+      new HashSet<>(
+          Arrays.asList(
+              "ackNeeded",
+              "alreadyInState",
+              "authExpired",
+              "authFailure",
+              "challengeFailedPinNeeded",
+              "challengeNeeded",
+              "deviceNotFound",
+              "deviceOffline",
+              "functionNotSupported",
+              "networkProfileNotRecognized",
+              "noTimerExists",
+              "notSupported",
+              "pinNeeded",
+              "protocolError",
+              "transientError",
+              "unknownError",
+              "valueOutOfRange"));
+
+  private final HistogramFamily intents =
+      new HistogramFamily(
+          "smarthome_intent_latency_seconds", "Fulfillment latency by intent.", "intent");
+  private final HistogramFamily storeMethods =
+      new HistogramFamily(
+          "smarthome_store_latency_seconds", "Device store latency by method.", "method");
+  private final HistogramFamily commands =
+      new HistogramFamily(
+          "smarthome_command_latency_seconds", "EXECUTE latency by command.", "command");
+  private final HistogramFamily reportState =
+      new HistogramFamily(
+          "smarthome_report_state_latency_seconds", "ReportState request latency.", null);
+  private final Map<String, LongAdder> errors = new ConcurrentHashMap<>();
+  // Sources registered under one name are summed, e.g. the batchers of several app instances.
+  private final Map<String, Exported> exported = new ConcurrentHashMap<>();
+
+  private static final class HistogramFamily {
+    final String name;
+    final String help;
+    final String label;
+    final Map<String, LatencyHistogram> histograms = new ConcurrentHashMap<>();
+
+    HistogramFamily(String name, String help, String label) {
+      this.name = name;
+      this.help = help;
+      this.label = label;
+    }
+
+    LatencyHistogram get(String value) {
+      return histograms.computeIfAbsent(value, v -> new LatencyHistogram());
+    }
+  }
+
+  private static final class Exported {
+    final String type;
+    final String help;
+    final List<LongSupplier> sources = new CopyOnWriteArrayList<>();
+
+    Exported(String type, String help) {
+      this.type = type;
+      this.help = help;
+    }
+  }
+
+  Metrics() {}
+
+  static Metrics getInstance() {
+    return INSTANCE;
+  }
+
+  /** Latency of a SYNC, QUERY, EXECUTE or DISCONNECT intent. */
+  LatencyHistogram intent(String intent) {
+    return intents.get(intent);
+  }
+
+  /** Latency of a {@link MyDataStore} method. */
+  LatencyHistogram store(String method) {
+    return storeMethods.get(method);
+  }
+
+  /**
+   * Latency of one device's EXECUTE command, e.g. action.devices.commands.OnOff. Commands without
+   * a handler are recorded as "other".
+   */
+  LatencyHistogram command(String command) {
+    return commands.get(CommandHandlers.get(command) != null ? command : OTHER);
+  }
+
+  /** Latency of ReportStateAndNotification requests to HomeGraph. */
+  LatencyHistogram reportState() {
+    return reportState.get("");
+  }
+
+  /** Counts an errorCode returned for a device or request; unknown codes count as "other". */
+  void error(String errorCode) {
+    String code = ERROR_CODES.contains(errorCode) ? errorCode : OTHER;
+    errors.computeIfAbsent(code, c -> new LongAdder()).increment();
+  }
+
+  long errors(String errorCode) {
+    LongAdder count = errors.get(errorCode);
+    return count != null ? count.sum() : 0;
+  }
+
+  /** Exports a monotonically increasing count kept elsewhere. */
+  void counter(String name, String help, LongSupplier value) {
+    export(name, "counter", help, value);
+  }
+
+  /** Exports a value kept elsewhere that may go up or down. */
+  void gauge(String name, String help, LongSupplier value) {
+    export(name, "gauge", help, value);
+  }
+
+  private void export(String name, String type, String help, LongSupplier value) {
+    exported.computeIfAbsent(name, n -> new Exported(type, help)).sources.add(value);
+  }
+
+  void write(Writer out) throws IOException {
+    for (HistogramFamily family :
+        new HistogramFamily[] {intents, storeMethods, commands, reportState}) {
+      write(out, family);
+    }
+
+    header(out, "smarthome_errors_total", "counter", "Error codes returned, by errorCode.");
+    for (Map.Entry<String, LongAdder> error : new TreeMap<>(errors).entrySet()) {
+      out.write("smarthome_errors_total{error_code=\"" + escape(error.getKey()) + "\"} ");
+      out.write(error.getValue().sum() + "\n");
+    }
+
+    for (Map.Entry<String, Exported> entry : new TreeMap<>(exported).entrySet()) {
+      Exported metric = entry.getValue();
+      long value = 0;
+      for (LongSupplier source : metric.sources) {
+        value += source.getAsLong();
+      }
+      header(out, entry.getKey(), metric.type, metric.help);
+      out.write(entry.getKey() + " " + value + "\n");
+    }
+  }
+
+  private static void write(Writer out, HistogramFamily family) throws IOException {
+    Map<String, LatencyHistogram> histograms = new TreeMap<>(family.histograms);
+    if (histograms.isEmpty()) {
+      return;
+    }
+    StringBuilder quantiles = new StringBuilder();
+    header(out, family.name, "histogram", family.help);
+    for (Map.Entry<String, LatencyHistogram> entry : histograms.entrySet()) {
+      String labels =
+          family.label != null ? family.label + "=\"" + escape(entry.getKey()) + "\"" : "";
+      String prefix = labels.isEmpty() ? "" : labels + ",";
+      LatencyHistogram histogram = entry.getValue();
+      long[] snapshot = histogram.snapshot();
+      long cumulative = 0;
+      for (int i = 0; i < LatencyHistogram.BUCKETS; i++) {
+        cumulative += snapshot[i];
+        out.write(family.name + "_bucket{" + prefix + "le=\"");
+        out.write(seconds(LatencyHistogram.upperBoundNanos(i)) + "\"} " + cumulative + "\n");
+      }
+      cumulative += snapshot[LatencyHistogram.BUCKETS];
+      out.write(family.name + "_bucket{" + prefix + "le=\"+Inf\"} " + cumulative + "\n");
+      String suffix = labels.isEmpty() ? " " : "{" + labels + "} ";
+      out.write(family.name + "_sum" + suffix + seconds(histogram.sumNanos()) + "\n");
+      out.write(family.name + "_count" + suffix + cumulative + "\n");
+      for (double q : QUANTILES) {
+        quantiles.append(family.name).append("_quantile{").append(prefix);
+        quantiles.append("quantile=\"").append(q).append("\"} ");
+        quantiles.append(seconds(histogram.percentileNanos(snapshot, q))).append('\n');
+      }
+    }
+    header(out, family.name + "_quantile", "gauge", "Percentiles of " + family.name + ".");
+    out.write(quantiles.toString());
+  }
+
+  private static void header(Writer out, String name, String type, String help)
+      throws IOException {
+    out.write("# HELP " + name + " " + help + "\n");
+    out.write("# TYPE " + name + " " + type + "\n");
+  }
+
+  private static String seconds(long nanos) {
+    return Double.toString(nanos / 1e9);
+  }
+
+  private static String escape(String value) {
+    return value.replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n");
+  }
+}
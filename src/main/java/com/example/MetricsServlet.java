@@ -0,0 +1,39 @@
+/*
+ * Copyright 2019 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example;
+
+import java.io.IOException;
+
+import javax.servlet.annotation.WebServlet;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+/** Serves {@link Metrics} in the Prometheus text exposition format. */
+@WebServlet(name = "metrics", urlPatterns = "/metrics")
+public class MetricsServlet extends HttpServlet {
+
+  @Override
+  protected void doGet(HttpServletRequest req, HttpServletResponse res) throws IOException {
+    // Creating the context registers the store's cache counters and the startup gauges.
+    AppContext.getInstance();
+    res.setStatus(HttpServletResponse.SC_OK);
+    res.setContentType("text/plain; version=0.0.4; charset=utf-8");
+    Metrics.getInstance().write(res.getWriter());
+    res.getWriter().flush();
+  }
+}
@@ -17,9 +17,14 @@
 package com.example;
 
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
 import java.util.concurrent.ExecutionException;
 
 import org.jetbrains.annotations.NotNull;
@@ -27,20 +32,112 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import com.google.actions.api.smarthome.*;
-import com.google.cloud.firestore.QueryDocumentSnapshot;
 import com.google.gson.Gson;
 import com.google.home.graph.v1.DeviceProto;
-import com.google.protobuf.Struct;
-import com.google.protobuf.util.JsonFormat;
 
 public class MySmartHomeApp extends SmartHomeApp {
 
   private static final Logger LOGGER = LoggerFactory.getLogger(MySmartHomeApp.class);
   private static MyDataStore database = MyDataStore.getInstance();
+  // Devices of unlinked accounts would otherwise pile up forever. The delete runs in the
+  // background; set this to false to keep devices for a later relink.
+  private static final boolean RECLAIM_ON_DISCONNECT =
+      Config.getBoolean("smarthome.disconnect.deleteDevices", true);
+  private final Metrics metrics = Metrics.getInstance();
+  private final ReportStateBatcher reportStateBatcher =
+      ReportStateBatcher.create(homeGraphSender());
+  private final RequestSyncScheduler requestSyncScheduler =
+      RequestSyncScheduler.create(requestSyncSender());
+
+  /**
+   * Sends state reports to HomeGraph or, when {@code smarthome.homegraph.stub} is set, discards
+   * them, so that load tests never reach Google.
+   */
+  private ReportStateBatcher.Sender homeGraphSender() {
+    if (Config.getBoolean("smarthome.homegraph.stub", false)) {
+      return request -> {};
+    }
+    return this::reportState;
+  }
+
+  /** Sends requestSync calls or, like state reports, discards them under the HomeGraph stub. */
+  private RequestSyncScheduler.Sender requestSyncSender() {
+    if (Config.getBoolean("smarthome.homegraph.stub", false)) {
+      return userId -> {};
+    }
+    return this::requestSync;
+  }
+
+  /**
+   * Queues a state report for a device. It is sent in the background, batched with the user's
+   * other devices, so callers never wait on HomeGraph.
+   */
+  void reportStates(String userId, String deviceId, Map<String, Object> states) {
+    reportStateBatcher.report(userId, deviceId, states);
+  }
+
+  /** Reports the states of many devices of one user, sending them without waiting for a batch. */
+  void reportStates(String userId, Map<String, Map<String, Object>> states) {
+    reportStateBatcher.reportAll(userId, states);
+  }
+
+  /**
+   * Asks HomeGraph to SYNC the user's devices once their changes have settled. Calls for the same
+   * user within the debounce window are folded into one, sent in the background.
+   */
+  void requestSyncLater(String userId) {
+    requestSyncScheduler.request(userId);
+  }
+
+  ReportStateBatcher getReportStateBatcher() {
+    return reportStateBatcher;
+  }
 
   @NotNull
   @Override
   public SyncResponse onSync(SyncRequest syncRequest, Map<?, ?> headers) {
+    long start = System.nanoTime();
+    try {
+      return sync(syncRequest, headers);
+    } finally {
+      metrics.intent("SYNC").recordSince(start);
+    }
+  }
+
+  @NotNull
+  @Override
+  public QueryResponse onQuery(QueryRequest queryRequest, Map<?, ?> headers) {
+    long start = System.nanoTime();
+    try {
+      return query(queryRequest, headers);
+    } finally {
+      metrics.intent("QUERY").recordSince(start);
+    }
+  }
+
+  @NotNull
+  @Override
+  public ExecuteResponse onExecute(ExecuteRequest executeRequest, Map<?, ?> headers) {
+    long start = System.nanoTime();
+    try {
+      return execute(executeRequest, headers);
+    } finally {
+      metrics.intent("EXECUTE").recordSince(start);
+    }
+  }
+
+  @NotNull
+  @Override
+  public void onDisconnect(DisconnectRequest disconnectRequest, Map<?, ?> headers) {
+    long start = System.nanoTime();
+    try {
+      disconnect(disconnectRequest, headers);
+    } finally {
+      metrics.intent("DISCONNECT").recordSince(start);
+    }
+  }
+
+  private SyncResponse sync(SyncRequest syncRequest, Map<?, ?> headers) {
 
     SyncResponse res = new SyncResponse();
     res.setRequestId(syncRequest.requestId);
@@ -59,7 +156,15 @@ public class MySmartHomeApp extends SmartHomeApp {
     res.payload.agentUserId = userId;
 
     database.setHomegraph(userId, true);
-    List<QueryDocumentSnapshot> devices = new ArrayList<>();
+    SyncCache syncCache = database.getSyncCache();
+    SyncResponse.Payload.Device[] cached = syncCache.get(userId);
+    if (cached != null) {
+      res.payload.devices = cached;
+      return res;
+    }
+    long version = syncCache.version(userId);
+
+    List<DeviceDocument> devices = new ArrayList<>();
     try {
       devices = database.getDevices(userId);
     } catch (ExecutionException | InterruptedException e) {
@@ -69,7 +174,7 @@ public class MySmartHomeApp extends SmartHomeApp {
     int numOfDevices = devices.size();
     res.payload.devices = new SyncResponse.Payload.Device[numOfDevices];
     for (int i = 0; i < numOfDevices; i++) {
-      QueryDocumentSnapshot device = devices.get(i);
+      DeviceDocument device = devices.get(i);
       SyncResponse.Payload.Device.Builder deviceBuilder =
           new SyncResponse.Payload.Device.Builder()
               .setId(device.getId())
@@ -91,16 +196,8 @@ public class MySmartHomeApp extends SmartHomeApp {
                       .setSwVersion((String) device.get("swVersion"))
                       .build());
       if (device.contains("attributes")) {
-        Map<String, Object> attributes = new HashMap<>();
-        attributes.putAll((Map<String, Object>) device.get("attributes"));
-        String attributesJson = new Gson().toJson(attributes);
-        Struct.Builder attributeBuilder = Struct.newBuilder();
-        try {
-          JsonFormat.parser().ignoringUnknownFields().merge(attributesJson, attributeBuilder);
-        } catch (Exception e) {
-          LOGGER.error("FAILED TO BUILD");
-        }
-        deviceBuilder.setAttributes(attributeBuilder.build());
+        Map<String, Object> attributes = (Map<String, Object>) device.get("attributes");
+        deviceBuilder.setAttributes(StructConverter.toStruct(attributes));
       }
       if (device.contains("customData")) {
         Map<String, Object> customData = new HashMap<>();
@@ -116,12 +213,11 @@ public class MySmartHomeApp extends SmartHomeApp {
       res.payload.devices[i] = deviceBuilder.build();
     }
 
+    syncCache.put(userId, version, res.payload.devices);
     return res;
   }
 
-  @NotNull
-  @Override
-  public QueryResponse onQuery(QueryRequest queryRequest, Map<?, ?> headers) {
+  private QueryResponse query(QueryRequest queryRequest, Map<?, ?> headers) {
     QueryRequest.Inputs.Payload.Device[] devices =
         ((QueryRequest.Inputs) queryRequest.getInputs()[0]).payload.devices;
     QueryResponse res = new QueryResponse();
@@ -135,30 +231,41 @@ public class MySmartHomeApp extends SmartHomeApp {
     } catch (Exception e) {
       LOGGER.error("failed to get user id for token: %d", headers.get("authorization"));
       res.payload.setErrorCode("authFailure");
+      metrics.error("authFailure");
       return res;
     }
 
-    Map<String, Map<String, Object>> deviceStates = new HashMap<>();
+    List<String> deviceIds = new ArrayList<>();
     for (QueryRequest.Inputs.Payload.Device device : devices) {
-      try {
-        Map<String, Object> deviceState = database.getState(userId, device.id);
+      deviceIds.add(device.id);
+    }
+    Map<String, Map<String, Object>> found;
+    try {
+      found = database.getStates(userId, deviceIds);
+    } catch (Exception e) {
+      LOGGER.error("QUERY FAILED: {}", e);
+      found = Collections.emptyMap();
+    }
+
+    Map<String, Map<String, Object>> deviceStates = new HashMap<>();
+    for (String deviceId : deviceIds) {
+      Map<String, Object> deviceState = found.get(deviceId);
+      if (deviceState != null) {
         deviceState.put("status", "SUCCESS");
-        deviceStates.put(device.id, deviceState);
-      } catch (Exception e) {
-        LOGGER.error("QUERY FAILED: {}", e);
+        deviceStates.put(deviceId, deviceState);
+      } else {
         Map<String, Object> failedDevice = new HashMap<>();
         failedDevice.put("status", "ERROR");
         failedDevice.put("errorCode", "deviceOffline");
-        deviceStates.put(device.id, failedDevice);
+        metrics.error("deviceOffline");
+        deviceStates.put(deviceId, failedDevice);
       }
     }
     res.payload.setDevices(deviceStates);
     return res;
   }
 
-  @NotNull
-  @Override
-  public ExecuteResponse onExecute(ExecuteRequest executeRequest, Map<?, ?> headers) {
+  private ExecuteResponse execute(ExecuteRequest executeRequest, Map<?, ?> headers) {
     ExecuteResponse res = new ExecuteResponse();
 
     String token = (String) headers.get("authorization");
@@ -169,6 +276,7 @@ public class MySmartHomeApp extends SmartHomeApp {
       LOGGER.error("failed to get user id for token: %d", headers.get("authorization"));
       res.setPayload(new ExecuteResponse.Payload());
       res.payload.setErrorCode("authFailure");
+      metrics.error("authFailure");
       return res;
     }
 
@@ -178,72 +286,119 @@ public class MySmartHomeApp extends SmartHomeApp {
 
     ExecuteRequest.Inputs.Payload.Commands[] commands =
         ((ExecuteRequest.Inputs) executeRequest.inputs[0]).payload.commands;
+    List<ExecuteRequest.Inputs.Payload.Commands.Devices> targets = new ArrayList<>();
+    List<CompletableFuture<Map<String, Object>>> results = new ArrayList<>();
+    // Commands for one device run in request order; only different devices run concurrently.
+    Map<String, List<Runnable>> byDevice = new LinkedHashMap<>();
     for (ExecuteRequest.Inputs.Payload.Commands command : commands) {
       for (ExecuteRequest.Inputs.Payload.Commands.Devices device : command.devices) {
-        try {
-          states = database.execute(userId, device.id, command.execution[0]);
-          successfulDevices.add(device.id);
-          ReportState.makeRequest(this, userId, device.id, states);
-        } catch (Exception e) {
-          if (e.getMessage().equals("PENDING")) {
-            ExecuteResponse.Payload.Commands pendingDevice = new ExecuteResponse.Payload.Commands();
-            pendingDevice.ids = new String[] {device.id};
-            pendingDevice.status = "PENDING";
-            commandsResponse.add(pendingDevice);
-            continue;
-          }
-          if (e.getMessage().equals("pinNeeded")) {
-            ExecuteResponse.Payload.Commands failedDevice = new ExecuteResponse.Payload.Commands();
-            failedDevice.ids = new String[] {device.id};
-            failedDevice.status = "ERROR";
-            failedDevice.setErrorCode("challengeNeeded");
-            failedDevice.setChallengeNeeded(
-                new HashMap<String, String>() {
-                  {
-                    put("type", "pinNeeded");
-                  }
-                });
-            failedDevice.setErrorCode(e.getMessage());
-            commandsResponse.add(failedDevice);
-            continue;
-          }
-          if (e.getMessage().equals("challengeFailedPinNeeded")) {
-            ExecuteResponse.Payload.Commands failedDevice = new ExecuteResponse.Payload.Commands();
-            failedDevice.ids = new String[] {device.id};
-            failedDevice.status = "ERROR";
-            failedDevice.setErrorCode("challengeNeeded");
-            failedDevice.setChallengeNeeded(
-                new HashMap<String, String>() {
-                  {
-                    put("type", "challengeFailedPinNeeded");
-                  }
-                });
-            failedDevice.setErrorCode(e.getMessage());
-            commandsResponse.add(failedDevice);
-            continue;
-          }
-          if (e.getMessage().equals("ackNeeded")) {
-            ExecuteResponse.Payload.Commands failedDevice = new ExecuteResponse.Payload.Commands();
-            failedDevice.ids = new String[] {device.id};
-            failedDevice.status = "ERROR";
-            failedDevice.setErrorCode("challengeNeeded");
-            failedDevice.setChallengeNeeded(
-                new HashMap<String, String>() {
-                  {
-                    put("type", "ackNeeded");
+        final String user = userId;
+        CompletableFuture<Map<String, Object>> result = new CompletableFuture<>();
+        targets.add(device);
+        results.add(result);
+        byDevice
+            .computeIfAbsent(device.id, id -> new ArrayList<>())
+            .add(
+                () -> {
+                  long start = System.nanoTime();
+                  try {
+                    Map<String, Object> deviceStates =
+                        database.execute(user, device.id, command.execution[0]);
+                    reportStates(user, device.id, deviceStates);
+                    result.complete(deviceStates);
+                  } catch (Exception e) {
+                    result.completeExceptionally(e);
+                  } finally {
+                    metrics.command(command.execution[0].command).recordSince(start);
                   }
                 });
-            failedDevice.setErrorCode(e.getMessage());
-            commandsResponse.add(failedDevice);
-            continue;
-          }
+      }
+    }
+    List<Callable<Void>> executions = new ArrayList<>();
+    for (List<Runnable> deviceCommands : byDevice.values()) {
+      executions.add(
+          () -> {
+            deviceCommands.forEach(Runnable::run);
+            return null;
+          });
+    }
+
+    try {
+      ExecuteFanOut.getInstance().invokeAll(executions);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      res.setPayload(new ExecuteResponse.Payload());
+      res.payload.setErrorCode("transientError");
+      metrics.error("transientError");
+      return res;
+    }
 
+    for (int i = 0; i < targets.size(); i++) {
+      ExecuteRequest.Inputs.Payload.Commands.Devices device = targets.get(i);
+      try {
+        states = results.get(i).join();
+        successfulDevices.add(device.id);
+      } catch (CompletionException failure) {
+        Throwable e = failure.getCause();
+        if (e.getMessage().equals("PENDING")) {
+          ExecuteResponse.Payload.Commands pendingDevice = new ExecuteResponse.Payload.Commands();
+          pendingDevice.ids = new String[] {device.id};
+          pendingDevice.status = "PENDING";
+          commandsResponse.add(pendingDevice);
+          continue;
+        }
+        metrics.error(e.getMessage());
+        if (e.getMessage().equals("pinNeeded")) {
+          ExecuteResponse.Payload.Commands failedDevice = new ExecuteResponse.Payload.Commands();
+          failedDevice.ids = new String[] {device.id};
+          failedDevice.status = "ERROR";
+          failedDevice.setErrorCode("challengeNeeded");
+          failedDevice.setChallengeNeeded(
+              new HashMap<String, String>() {
+                {
+                  put("type", "pinNeeded");
+                }
+              });
+          failedDevice.setErrorCode(e.getMessage());
+          commandsResponse.add(failedDevice);
+          continue;
+        }
+        if (e.getMessage().equals("challengeFailedPinNeeded")) {
           ExecuteResponse.Payload.Commands failedDevice = new ExecuteResponse.Payload.Commands();
           failedDevice.ids = new String[] {device.id};
           failedDevice.status = "ERROR";
+          failedDevice.setErrorCode("challengeNeeded");
+          failedDevice.setChallengeNeeded(
+              new HashMap<String, String>() {
+                {
+                  put("type", "challengeFailedPinNeeded");
+                }
+              });
           failedDevice.setErrorCode(e.getMessage());
           commandsResponse.add(failedDevice);
+          continue;
         }
+        if (e.getMessage().equals("ackNeeded")) {
+          ExecuteResponse.Payload.Commands failedDevice = new ExecuteResponse.Payload.Commands();
+          failedDevice.ids = new String[] {device.id};
+          failedDevice.status = "ERROR";
+          failedDevice.setErrorCode("challengeNeeded");
+          failedDevice.setChallengeNeeded(
+              new HashMap<String, String>() {
+                {
+                  put("type", "ackNeeded");
+                }
+              });
+          failedDevice.setErrorCode(e.getMessage());
+          commandsResponse.add(failedDevice);
+          continue;
+        }
+
+        ExecuteResponse.Payload.Commands failedDevice = new ExecuteResponse.Payload.Commands();
+        failedDevice.ids = new String[] {device.id};
+        failedDevice.status = "ERROR";
+        failedDevice.setErrorCode(e.getMessage());
+        commandsResponse.add(failedDevice);
       }
     }
 
@@ -262,13 +417,16 @@ public class MySmartHomeApp extends SmartHomeApp {
     return res;
   }
 
-  @NotNull
-  @Override
-  public void onDisconnect(DisconnectRequest disconnectRequest, Map<?, ?> headers) {
+  private void disconnect(DisconnectRequest disconnectRequest, Map<?, ?> headers) {
     String token = (String) headers.get("authorization");
     try {
       String userId = database.getUserId(token);
       database.setHomegraph(userId, false);
+      database.getSyncCache().invalidate(userId);
+      database.invalidateToken(token);
+      if (RECLAIM_ON_DISCONNECT) {
+        DeviceReclaimer.getInstance().deleteAll(userId, null);
+      }
     } catch (Exception e) {
       LOGGER.error("failed to get user id for token: %d", token);
     }
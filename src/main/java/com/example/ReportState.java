@@ -18,81 +18,44 @@ package com.example;
 
 import java.util.Map;
 
-import org.slf4j.Logger;
-import org.slf4j.LoggerFactory;
-
-import com.google.actions.api.smarthome.SmartHomeApp;
-import com.google.gson.Gson;
-import com.google.gson.JsonObject;
-import com.google.gson.JsonParser;
 import com.google.home.graph.v1.HomeGraphApiServiceProto;
 import com.google.protobuf.Struct;
 import com.google.protobuf.Value;
-import com.google.protobuf.util.JsonFormat;
 
 /**
- * A singleton class to encapsulate state reporting behavior with changing ColorSetting state
- * values.
+ * Builds HomeGraph state reports: {@link #toStruct} converts one device's states, and {@link
+ * #buildRequest} combines those of several devices into one request. Sending is left to {@link
+ * ReportStateBatcher}.
  */
 final class ReportState {
-  private static final Logger LOGGER = LoggerFactory.getLogger(MySmartHomeApp.class);
-
   private ReportState() {}
 
-  /**
-   * Creates and completes a ReportStateAndNotification request
-   *
-   * @param actionsApp The SmartHomeApp instance to use to make the gRPC request
-   * @param userId The agent user ID
-   * @param deviceId The device ID
-   * @param states A Map of state keys and their values for the provided device ID
-   */
-  public static void makeRequest(
-      SmartHomeApp actionsApp, String userId, String deviceId, Map<String, Object> states) {
-    // Convert a Map of states to a JsonObject
-    JsonObject jsonStates = (JsonObject) JsonParser.parseString(new Gson().toJson(states));
-    ReportState.makeRequest(actionsApp, userId, deviceId, jsonStates);
+  /** Converts the states of one device to the Struct HomeGraph expects. */
+  static Struct toStruct(Map<String, Object> states) {
+    return StructConverter.toStateStruct(states);
   }
 
   /**
-   * Creates and completes a ReportStateAndNotification request
+   * Builds one ReportStateAndNotification request covering several devices of a user.
    *
-   * @param actionsApp The SmartHomeApp instance to use to make the gRPC request
    * @param userId The agent user ID
-   * @param deviceId The device ID
-   * @param states A JSON object of state keys and their values for the provided device ID
+   * @param devices The states of each device, keyed by device ID
    */
-  public static void makeRequest(
-      SmartHomeApp actionsApp, String userId, String deviceId, JsonObject states) {
-    // Do state name replacement for ColorSetting trait
-    // See https://developers.google.com/assistant/smarthome/traits/colorsetting#device-states
-    JsonObject colorJson = states.getAsJsonObject("color");
-    if (colorJson != null && colorJson.has("spectrumRgb")) {
-      colorJson.add("spectrumRGB", colorJson.get("spectrumRgb"));
-      colorJson.remove("spectrumRgb");
-    }
-    Struct.Builder statesStruct = Struct.newBuilder();
-    try {
-      JsonFormat.parser().ignoringUnknownFields().merge(new Gson().toJson(states), statesStruct);
-    } catch (Exception e) {
-      LOGGER.error("FAILED TO BUILD");
+  static HomeGraphApiServiceProto.ReportStateAndNotificationRequest buildRequest(
+      String userId, Map<String, Struct> devices) {
+    Struct.Builder states = Struct.newBuilder();
+    for (Map.Entry<String, Struct> device : devices.entrySet()) {
+      Value deviceStates = Value.newBuilder().setStructValue(device.getValue()).build();
+      states.putFields(device.getKey(), deviceStates);
     }
-
-    HomeGraphApiServiceProto.ReportStateAndNotificationDevice.Builder deviceBuilder =
-        HomeGraphApiServiceProto.ReportStateAndNotificationDevice.newBuilder()
-            .setStates(
-                Struct.newBuilder()
-                    .putFields(deviceId, Value.newBuilder().setStructValue(statesStruct).build()));
-
-    HomeGraphApiServiceProto.ReportStateAndNotificationRequest request =
-        HomeGraphApiServiceProto.ReportStateAndNotificationRequest.newBuilder()
-            .setRequestId(String.valueOf(Math.random()))
-            .setAgentUserId(userId) // our single user's id
-            .setPayload(
-                HomeGraphApiServiceProto.StateAndNotificationPayload.newBuilder()
-                    .setDevices(deviceBuilder))
-            .build();
-
-    actionsApp.reportState(request);
+    return HomeGraphApiServiceProto.ReportStateAndNotificationRequest.newBuilder()
+        .setRequestId(String.valueOf(Math.random()))
+        .setAgentUserId(userId)
+        .setPayload(
+            HomeGraphApiServiceProto.StateAndNotificationPayload.newBuilder()
+                .setDevices(
+                    HomeGraphApiServiceProto.ReportStateAndNotificationDevice.newBuilder()
+                        .setStates(states)))
+        .build();
   }
 }
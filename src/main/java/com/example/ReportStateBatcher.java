@@ -0,0 +1,414 @@
+/*
+ * Copyright 2019 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.home.graph.v1.HomeGraphApiServiceProto;
+import com.google.protobuf.Struct;
+
+/**
+ * Accumulates state reports per user and sends one ReportStateAndNotification request covering
+ * every changed device of that user. A user's batch is sent once it holds {@code maxDevices}
+ * devices or {@code maxDelay} after its first report, whichever comes first. A device reported
+ * twice within one batch is sent once, with its latest states.
+ *
+ * <p>Requests are sent by a small pool of background threads, so reporting never waits on
+ * HomeGraph. A user's requests are sent one at a time, in the order their batches were closed, so
+ * an older state never overtakes a newer one; batches waiting behind a request in flight are
+ * merged. Both the pending reports and the send queue are bounded; reports beyond either bound are
+ * dropped and counted rather than slowing fulfillment down.
+ */
+final class ReportStateBatcher {
+  private static final Logger LOGGER = LoggerFactory.getLogger(MySmartHomeApp.class);
+  // Every app instance has a batcher, and they live as long as the process.
+  private static final List<ReportStateBatcher> CREATED = new CopyOnWriteArrayList<>();
+
+  /** Sends a ReportStateAndNotification request to HomeGraph. */
+  interface Sender {
+    void send(HomeGraphApiServiceProto.ReportStateAndNotificationRequest request);
+  }
+
+  private final Sender sender;
+  private final int maxDevices;
+  private final long maxDelayMs;
+  private final int maxPending;
+  private final int queueSize;
+  private final ScheduledExecutorService scheduler;
+  private final ThreadPoolExecutor senders;
+  // Pending batches by userId, devices in first-reported order. Guarded by this.
+  private final Map<String, Map<String, Struct>> pending = new HashMap<>();
+  private int pendingDevices;
+  // Batches of users with a request in flight, sent once it completes. Guarded by this.
+  private final Map<String, ArrayDeque<Map<String, Struct>>> sending = new HashMap<>();
+  private int waitingBatches;
+
+  private final LongAdder reported = new LongAdder();
+  private final LongAdder coalesced = new LongAdder();
+  private final LongAdder dropped = new LongAdder();
+  private final LongAdder sent = new LongAdder();
+  private final LongAdder failed = new LongAdder();
+  private final LongAdder requests = new LongAdder();
+  private final LongAdder sendNanos = new LongAdder();
+  private final LongAccumulator maxSendNanos = new LongAccumulator(Math::max, 0);
+
+  ReportStateBatcher(Sender sender, int maxDevices, long maxDelayMs) {
+    this(sender, maxDevices, maxDelayMs, 10000, 2, 1000);
+  }
+
+  /**
+   * Creates a batcher with explicit bounds.
+   *
+   * @param maxPending The most devices awaiting a batch, across all users
+   * @param threads The number of threads sending requests
+   * @param queueSize The most batches waiting for a sending thread
+   */
+  ReportStateBatcher(
+      Sender sender,
+      int maxDevices,
+      long maxDelayMs,
+      int maxPending,
+      int threads,
+      int queueSize) {
+    this.sender = sender;
+    this.maxDevices = maxDevices;
+    this.maxDelayMs = maxDelayMs;
+    this.maxPending = maxPending;
+    this.queueSize = queueSize;
+    this.scheduler =
+        Executors.newSingleThreadScheduledExecutor(
+            runnable -> {
+              Thread thread = new Thread(runnable, "report-state-batcher");
+              thread.setDaemon(true);
+              return thread;
+            });
+    AtomicInteger count = new AtomicInteger();
+    this.senders =
+        new ThreadPoolExecutor(
+            threads,
+            threads,
+            60,
+            TimeUnit.SECONDS,
+            new ArrayBlockingQueue<>(queueSize),
+            runnable -> {
+              Thread thread = new Thread(runnable, "report-state-" + count.incrementAndGet());
+              thread.setDaemon(true);
+              return thread;
+            });
+    this.senders.allowCoreThreadTimeOut(true);
+  }
+
+  /** Creates a batcher configured by {@code smarthome.reportState.*} settings. */
+  static ReportStateBatcher create(Sender sender) {
+    ReportStateBatcher batcher =
+        new ReportStateBatcher(
+            sender,
+            Config.getInt("smarthome.reportState.batchSize", 50),
+            Config.getLong("smarthome.reportState.maxDelayMs", 100),
+            Config.getInt("smarthome.reportState.maxPending", 10000),
+            Config.getInt("smarthome.reportState.threads", 2),
+            Config.getInt("smarthome.reportState.queue", 1000));
+    batcher.exportMetrics(Metrics.getInstance());
+    CREATED.add(batcher);
+    return batcher;
+  }
+
+  /** Exports this batcher's counters through {@code metrics}, summed with other batchers'. */
+  void exportMetrics(Metrics metrics) {
+    metrics.counter(
+        "smarthome_report_state_reported_total", "Device states reported.", this::reported);
+    metrics.counter(
+        "smarthome_report_state_coalesced_total",
+        "Device states replaced by a newer report before being sent.",
+        this::coalesced);
+    metrics.counter(
+        "smarthome_report_state_dropped_total", "Device states dropped.", this::dropped);
+    metrics.counter("smarthome_report_state_sent_total", "Device states sent.", this::sent);
+    metrics.counter(
+        "smarthome_report_state_failed_total", "Device states whose send failed.", this::failed);
+    metrics.counter(
+        "smarthome_report_state_requests_total", "ReportState requests sent.", this::requests);
+    metrics.gauge(
+        "smarthome_report_state_queue_depth",
+        "Reports awaiting a batch or a sender.",
+        this::queueDepth);
+  }
+
+  void report(String userId, String deviceId, Map<String, Object> states) {
+    report(userId, deviceId, ReportState.toStruct(states));
+  }
+
+  void report(String userId, String deviceId, Struct states) {
+    reported.increment();
+    synchronized (this) {
+      Map<String, Struct> devices = pending.get(userId);
+      if (devices != null && devices.containsKey(deviceId)) {
+        // Last write wins: only the latest states of a device are worth sending.
+        devices.put(deviceId, states);
+        coalesced.increment();
+        return;
+      }
+      if (pendingDevices >= maxPending) {
+        dropped.increment();
+        return;
+      }
+      if (devices == null) {
+        devices = new LinkedHashMap<>();
+        pending.put(userId, devices);
+        if (maxDelayMs > 0) {
+          Map<String, Struct> batch = devices;
+          scheduler.schedule(() -> flush(userId, batch), maxDelayMs, TimeUnit.MILLISECONDS);
+        }
+      }
+      devices.put(deviceId, states);
+      pendingDevices++;
+      if (devices.size() < maxDevices && maxDelayMs > 0) {
+        return;
+      }
+      pending.remove(userId);
+      pendingDevices -= devices.size();
+      dispatch(userId, devices);
+    }
+  }
+
+  /**
+   * Reports the states of many devices of one user at once. They are sent right away, together
+   * with any of the user's reports still waiting for a batch, in requests of at most {@code
+   * maxDevices} devices.
+   */
+  void reportAll(String userId, Map<String, Map<String, Object>> states) {
+    Map<String, Struct> devices = new LinkedHashMap<>();
+    for (Map.Entry<String, Map<String, Object>> device : states.entrySet()) {
+      devices.put(device.getKey(), ReportState.toStruct(device.getValue()));
+    }
+    reported.add(devices.size());
+    synchronized (this) {
+      Map<String, Struct> waiting = pending.remove(userId);
+      if (waiting != null) {
+        pendingDevices -= waiting.size();
+        for (Map.Entry<String, Struct> device : waiting.entrySet()) {
+          // The states reported now are newer.
+          if (devices.putIfAbsent(device.getKey(), device.getValue()) != null) {
+            coalesced.increment();
+          }
+        }
+      }
+      Map<String, Struct> batch = new LinkedHashMap<>();
+      for (Map.Entry<String, Struct> device : devices.entrySet()) {
+        batch.put(device.getKey(), device.getValue());
+        if (batch.size() >= maxDevices) {
+          dispatch(userId, batch);
+          batch = new LinkedHashMap<>();
+        }
+      }
+      if (!batch.isEmpty()) {
+        dispatch(userId, batch);
+      }
+    }
+  }
+
+  /** Drops the reports of deleted devices that are still waiting for a batch or a request. */
+  synchronized void discard(String userId, Collection<String> deviceIds) {
+    ArrayDeque<Map<String, Struct>> waiting = sending.get(userId);
+    if (waiting != null) {
+      for (Map<String, Struct> batch : waiting) {
+        batch.keySet().removeAll(deviceIds);
+      }
+    }
+    Map<String, Struct> devices = pending.get(userId);
+    if (devices == null) {
+      return;
+    }
+    for (String deviceId : deviceIds) {
+      if (devices.remove(deviceId) != null) {
+        pendingDevices--;
+      }
+    }
+    if (devices.isEmpty()) {
+      pending.remove(userId);
+    }
+  }
+
+  /** Drops waiting reports of deleted devices from every batcher made by {@link #create}. */
+  static void discardAll(String userId, Collection<String> deviceIds) {
+    for (ReportStateBatcher batcher : CREATED) {
+      batcher.discard(userId, deviceIds);
+    }
+  }
+
+  private synchronized void flush(String userId, Map<String, Struct> batch) {
+    // Already sent because it filled up.
+    if (!pending.remove(userId, batch)) {
+      return;
+    }
+    pendingDevices -= batch.size();
+    dispatch(userId, batch);
+  }
+
+  /** Hands every pending batch to the sending threads now. */
+  synchronized void flushAll() {
+    List<Map.Entry<String, Map<String, Struct>>> batches = new ArrayList<>(pending.entrySet());
+    pending.clear();
+    pendingDevices = 0;
+    for (Map.Entry<String, Map<String, Struct>> batch : batches) {
+      dispatch(batch.getKey(), batch.getValue());
+    }
+  }
+
+  /** Sends the pending batches and waits up to {@code timeout} for every send to finish. */
+  void shutdown(long timeout, TimeUnit unit) throws InterruptedException {
+    scheduler.shutdown();
+    flushAll();
+    senders.shutdown();
+    senders.awaitTermination(timeout, unit);
+  }
+
+  /**
+   * Hands a closed batch to the sending threads, or queues it behind the user's request in flight.
+   * Called with this locked, in the order the user's batches were closed.
+   */
+  private void dispatch(String userId, Map<String, Struct> devices) {
+    ArrayDeque<Map<String, Struct>> waiting = sending.get(userId);
+    if (waiting != null) {
+      Map<String, Struct> last = waiting.peekLast();
+      if (last != null && last.size() + devices.size() <= maxDevices) {
+        // Neither is sent yet, so the later batch's states can join the earlier request.
+        for (Map.Entry<String, Struct> device : devices.entrySet()) {
+          if (last.put(device.getKey(), device.getValue()) != null) {
+            coalesced.increment();
+          }
+        }
+      } else if (waitingBatches < queueSize) {
+        waiting.add(devices);
+        waitingBatches++;
+      } else {
+        drop(devices.size());
+      }
+      return;
+    }
+    sending.put(userId, new ArrayDeque<>());
+    try {
+      senders.execute(() -> drain(userId, devices));
+    } catch (RejectedExecutionException e) {
+      sending.remove(userId);
+      drop(devices.size());
+    }
+  }
+
+  private void drop(int devices) {
+    dropped.add(devices);
+    LOGGER.warn("report state queue full, dropping states of {} devices", devices);
+  }
+
+  /** Sends the user's batches, one request at a time, until none are waiting. */
+  private void drain(String userId, Map<String, Struct> devices) {
+    while (devices != null) {
+      // Waiting batches may have lost all their devices to discard().
+      if (!devices.isEmpty()) {
+        send(userId, devices);
+      }
+      synchronized (this) {
+        devices = sending.get(userId).poll();
+        if (devices == null) {
+          sending.remove(userId);
+        } else {
+          waitingBatches--;
+        }
+      }
+    }
+  }
+
+  private void send(String userId, Map<String, Struct> devices) {
+    long start = System.nanoTime();
+    try {
+      sender.send(ReportState.buildRequest(userId, devices));
+      sent.add(devices.size());
+    } catch (RuntimeException e) {
+      failed.add(devices.size());
+      LOGGER.error("failed to report state of {} devices", devices.size(), e);
+    } finally {
+      requests.increment();
+      long elapsed = System.nanoTime() - start;
+      sendNanos.add(elapsed);
+      maxSendNanos.accumulate(elapsed);
+      Metrics.getInstance().reportState().record(elapsed);
+    }
+  }
+
+  /** Device states reported, including ones later coalesced or dropped. */
+  long reported() {
+    return reported.sum();
+  }
+
+  /** Device states replaced by a newer report before being sent. */
+  long coalesced() {
+    return coalesced.sum();
+  }
+
+  /** Device states dropped because the pending reports or the send queue were full. */
+  long dropped() {
+    return dropped.sum();
+  }
+
+  /** Device states sent to HomeGraph. */
+  long sent() {
+    return sent.sum();
+  }
+
+  /** Device states whose request to HomeGraph failed. */
+  long failed() {
+    return failed.sum();
+  }
+
+  /** Number of requests that were sent, whether or not they succeeded. */
+  long requests() {
+    return requests.sum();
+  }
+
+  /** Total time spent in HomeGraph requests. */
+  long sendNanos() {
+    return sendNanos.sum();
+  }
+
+  long maxSendNanos() {
+    return maxSendNanos.get();
+  }
+
+  /** Devices awaiting a batch plus batches awaiting a sending thread or an earlier request. */
+  synchronized int queueDepth() {
+    return pendingDevices + senders.getQueue().size() + waitingBatches;
+  }
+}
@@ -0,0 +1,148 @@
+/*
+ * Copyright 2019 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+import javax.servlet.http.HttpServletRequest;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonParseException;
+
+/**
+ * Reads request bodies without building intermediate copies, refusing bodies over {@code
+ * smarthome.request.maxBytes} bytes.
+ */
+final class RequestBodies {
+  private static final Gson GSON = new Gson();
+  private static final long MAX_BYTES = Config.getLong("smarthome.request.maxBytes", 1 << 20);
+  // Buffers up to this size are kept for the thread's next request.
+  private static final int POOLED_BUFFER_SIZE = 64 * 1024;
+  private static final ThreadLocal<byte[]> BUFFERS =
+      ThreadLocal.withInitial(() -> new byte[8 * 1024]);
+
+  /** Thrown when a request body exceeds the configured limit. */
+  static final class TooLargeException extends IOException {
+    TooLargeException(long maxBytes) {
+      super("request body exceeds " + maxBytes + " bytes");
+    }
+  }
+
+  private RequestBodies() {}
+
+  /** Reads the whole body into one String, decoding it once from a pooled buffer. */
+  static String readString(HttpServletRequest req) throws IOException {
+    return readString(req, MAX_BYTES);
+  }
+
+  static String readString(HttpServletRequest req, long maxBytes) throws IOException {
+    InputStream in = open(req, maxBytes);
+    byte[] buffer = BUFFERS.get();
+    int length = 0;
+    int read;
+    while ((read = in.read(buffer, length, buffer.length - length)) != -1) {
+      length += read;
+      if (length == buffer.length) {
+        buffer = Arrays.copyOf(buffer, buffer.length * 2);
+      }
+    }
+    if (buffer.length <= POOLED_BUFFER_SIZE) {
+      BUFFERS.set(buffer);
+    }
+    return new String(buffer, 0, length, charset(req));
+  }
+
+  /** Parses the body as JSON into {@code type} straight from the request stream. */
+  static <T> T readJson(HttpServletRequest req, Class<T> type) throws IOException {
+    return readJson(req, type, MAX_BYTES);
+  }
+
+  static <T> T readJson(HttpServletRequest req, Class<T> type, long maxBytes)
+      throws IOException {
+    try (Reader reader = openReader(req, maxBytes)) {
+      return GSON.fromJson(reader, type);
+    } catch (JsonParseException e) {
+      // Gson wraps failures of the underlying stream, including the size limit.
+      for (Throwable cause = e.getCause(); cause != null; cause = cause.getCause()) {
+        if (cause instanceof TooLargeException) {
+          throw (TooLargeException) cause;
+        }
+      }
+      throw e;
+    }
+  }
+
+  /** Opens the body for streaming, decoded with the request's charset. */
+  static Reader openReader(HttpServletRequest req, long maxBytes) throws IOException {
+    return new InputStreamReader(open(req, maxBytes), charset(req));
+  }
+
+  private static InputStream open(HttpServletRequest req, long maxBytes) throws IOException {
+    if (req.getContentLengthLong() > maxBytes) {
+      throw new TooLargeException(maxBytes);
+    }
+    // The declared length may be missing, e.g. for chunked bodies, so count as well.
+    return new LimitedInputStream(req.getInputStream(), maxBytes);
+  }
+
+  private static Charset charset(HttpServletRequest req) {
+    String encoding = req.getCharacterEncoding();
+    return encoding != null ? Charset.forName(encoding) : StandardCharsets.UTF_8;
+  }
+
+  private static final class LimitedInputStream extends FilterInputStream {
+    private final long maxBytes;
+    private long count;
+
+    LimitedInputStream(InputStream in, long maxBytes) {
+      super(in);
+      this.maxBytes = maxBytes;
+    }
+
+    @Override
+    public int read() throws IOException {
+      int b = super.read();
+      if (b != -1) {
+        counted(1);
+      }
+      return b;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+      int read = super.read(b, off, len);
+      if (read > 0) {
+        counted(read);
+      }
+      return read;
+    }
+
+    private void counted(int read) throws TooLargeException {
+      count += read;
+      if (count > maxBytes) {
+        throw new TooLargeException(maxBytes);
+      }
+    }
+  }
+}
@@ -0,0 +1,209 @@
+/*
+ * Copyright 2019 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Debounces requestSync calls per user. A call is sent once no further request for the user has
+ * arrived for {@code quietMs}, but no later than {@code maxDelayMs} after the first of them, so a
+ * burst of device changes costs one call and one SYNC back. Calls are sent in the background and
+ * retried with exponential backoff, up to {@code maxAttempts} attempts in all.
+ */
+final class RequestSyncScheduler {
+  private static final Logger LOGGER = LoggerFactory.getLogger(MySmartHomeApp.class);
+
+  /** Sends a requestSync call to HomeGraph. */
+  interface Sender {
+    void requestSync(String userId) throws Exception;
+  }
+
+  private final Sender sender;
+  private final long quietMs;
+  private final long maxDelayMs;
+  private final int maxAttempts;
+  private final long retryDelayMs;
+  private final ScheduledExecutorService scheduler;
+  private final ThreadPoolExecutor senders;
+  // Users with a call waiting to be sent. Guarded by this.
+  private final Map<String, Pending> pending = new HashMap<>();
+
+  private final LongAdder requested = new LongAdder();
+  private final LongAdder coalesced = new LongAdder();
+  private final LongAdder sent = new LongAdder();
+  private final LongAdder retried = new LongAdder();
+  private final LongAdder failed = new LongAdder();
+
+  private static final class Pending {
+    final long deadline;
+    ScheduledFuture<?> send;
+
+    Pending(long deadline) {
+      this.deadline = deadline;
+    }
+  }
+
+  RequestSyncScheduler(
+      Sender sender, long quietMs, long maxDelayMs, int maxAttempts, long retryDelayMs) {
+    this.sender = sender;
+    this.quietMs = quietMs;
+    this.maxDelayMs = Math.max(quietMs, maxDelayMs);
+    this.maxAttempts = Math.max(1, maxAttempts);
+    this.retryDelayMs = retryDelayMs;
+    this.scheduler =
+        Executors.newSingleThreadScheduledExecutor(
+            runnable -> {
+              Thread thread = new Thread(runnable, "request-sync-scheduler");
+              thread.setDaemon(true);
+              return thread;
+            });
+    this.senders =
+        new ThreadPoolExecutor(
+            1,
+            1,
+            60,
+            TimeUnit.SECONDS,
+            new ArrayBlockingQueue<>(10000),
+            runnable -> {
+              Thread thread = new Thread(runnable, "request-sync");
+              thread.setDaemon(true);
+              return thread;
+            });
+    this.senders.allowCoreThreadTimeOut(true);
+  }
+
+  /** Creates a scheduler configured by {@code smarthome.requestSync.*} settings. */
+  static RequestSyncScheduler create(Sender sender) {
+    RequestSyncScheduler scheduler =
+        new RequestSyncScheduler(
+            sender,
+            Config.getLong("smarthome.requestSync.quietMs", 1000),
+            Config.getLong("smarthome.requestSync.maxDelayMs", 10000),
+            Config.getInt("smarthome.requestSync.maxAttempts", 5),
+            Config.getLong("smarthome.requestSync.retryDelayMs", 1000));
+    scheduler.exportMetrics(Metrics.getInstance());
+    return scheduler;
+  }
+
+  /** Exports this scheduler's counters through {@code metrics}, summed with other schedulers'. */
+  void exportMetrics(Metrics metrics) {
+    metrics.counter(
+        "smarthome_request_sync_requested_total", "requestSync calls asked for.", this::requested);
+    metrics.counter(
+        "smarthome_request_sync_coalesced_total",
+        "requestSync calls folded into one already waiting for the user.",
+        this::coalesced);
+    metrics.counter(
+        "smarthome_request_sync_sent_total", "requestSync calls that succeeded.", this::sent);
+    metrics.counter(
+        "smarthome_request_sync_retried_total", "requestSync attempts retried.", this::retried);
+    metrics.counter(
+        "smarthome_request_sync_failed_total",
+        "requestSync calls given up after maxAttempts.",
+        this::failed);
+  }
+
+  /** Asks for a requestSync call for the user, sent once their changes have settled. */
+  void request(String userId) {
+    requested.increment();
+    long now = System.nanoTime();
+    synchronized (this) {
+      Pending waiting = pending.get(userId);
+      if (waiting == null) {
+        waiting = new Pending(now + TimeUnit.MILLISECONDS.toNanos(maxDelayMs));
+        pending.put(userId, waiting);
+      } else {
+        coalesced.increment();
+        if (!waiting.send.cancel(false)) {
+          // Already firing; it removes the entry and sends, covering this request too.
+          return;
+        }
+      }
+      long delay = Math.min(TimeUnit.MILLISECONDS.toNanos(quietMs), waiting.deadline - now);
+      Pending scheduled = waiting;
+      waiting.send =
+          scheduler.schedule(() -> fire(userId, scheduled), delay, TimeUnit.NANOSECONDS);
+    }
+  }
+
+  private void fire(String userId, Pending waiting) {
+    synchronized (this) {
+      if (!pending.remove(userId, waiting)) {
+        return;
+      }
+    }
+    submit(userId, 1);
+  }
+
+  private void submit(String userId, int attempt) {
+    try {
+      senders.execute(() -> send(userId, attempt));
+    } catch (RejectedExecutionException e) {
+      failed.increment();
+      LOGGER.warn("request sync queue full, dropping request for user {}", userId);
+    }
+  }
+
+  private void send(String userId, int attempt) {
+    try {
+      sender.requestSync(userId);
+      sent.increment();
+    } catch (Exception e) {
+      if (attempt >= maxAttempts) {
+        failed.increment();
+        LOGGER.error("request sync for user {} failed after {} attempts", userId, attempt, e);
+        return;
+      }
+      retried.increment();
+      long delay = retryDelayMs << Math.min(attempt - 1, 16);
+      LOGGER.warn("request sync for user {} failed, retrying in {} ms", userId, delay);
+      scheduler.schedule(() -> submit(userId, attempt + 1), delay, TimeUnit.MILLISECONDS);
+    }
+  }
+
+  long requested() {
+    return requested.sum();
+  }
+
+  long coalesced() {
+    return coalesced.sum();
+  }
+
+  long sent() {
+    return sent.sum();
+  }
+
+  long retried() {
+    return retried.sum();
+  }
+
+  long failed() {
+    return failed.sum();
+  }
+}
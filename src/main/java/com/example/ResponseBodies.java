@@ -0,0 +1,111 @@
+/*
+ * Copyright 2019 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+import java.util.zip.GZIPOutputStream;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * Writes JSON responses to the servlet OutputStream in fixed-size chunks through a per-thread
+ * encoder, so no byte copy of the whole response is made. Responses of at least {@code
+ * smarthome.response.gzipMinBytes} characters are gzipped for clients that accept it, unless
+ * {@code smarthome.response.gzip} is false.
+ */
+final class ResponseBodies {
+  private static final boolean GZIP = Config.getBoolean("smarthome.response.gzip", true);
+  private static final int GZIP_MIN_BYTES = Config.getInt("smarthome.response.gzipMinBytes", 1024);
+  private static final int BUFFER_SIZE = 8 * 1024;
+  private static final ThreadLocal<Encoder> ENCODERS = ThreadLocal.withInitial(Encoder::new);
+
+  private ResponseBodies() {}
+
+  /** Returns whether the request's Accept-Encoding allows a gzipped response. */
+  static boolean acceptsGzip(HttpServletRequest req) {
+    String accepted = req.getHeader("Accept-Encoding");
+    if (accepted == null) {
+      return false;
+    }
+    for (String coding : accepted.split(",")) {
+      String[] parts = coding.split(";");
+      String name = parts[0].trim();
+      if (name.equalsIgnoreCase("gzip") || name.equals("*")) {
+        return parts.length < 2 || !parts[1].trim().matches("q\\s*=\\s*0(\\.0*)?");
+      }
+    }
+    return false;
+  }
+
+  static void writeJson(HttpServletResponse res, String json, boolean acceptsGzip)
+      throws IOException {
+    writeJson(res, json, acceptsGzip && GZIP, GZIP_MIN_BYTES);
+  }
+
+  static void writeJson(HttpServletResponse res, String json, boolean gzip, int gzipMinBytes)
+      throws IOException {
+    res.setContentType("application/json");
+    res.setCharacterEncoding("UTF-8");
+    res.addHeader("Vary", "Accept-Encoding");
+    OutputStream out = res.getOutputStream();
+    if (gzip && json.length() >= gzipMinBytes) {
+      res.setHeader("Content-Encoding", "gzip");
+      GZIPOutputStream compressed = new GZIPOutputStream(out, BUFFER_SIZE);
+      ENCODERS.get().write(json, compressed);
+      compressed.finish();
+    } else {
+      ENCODERS.get().write(json, out);
+    }
+    out.flush();
+  }
+
+  private static final class Encoder {
+    private final CharsetEncoder encoder =
+        StandardCharsets.UTF_8
+            .newEncoder()
+            .onMalformedInput(CodingErrorAction.REPLACE)
+            .onUnmappableCharacter(CodingErrorAction.REPLACE);
+    private final ByteBuffer bytes = ByteBuffer.allocate(BUFFER_SIZE);
+
+    void write(CharSequence text, OutputStream out) throws IOException {
+      encoder.reset();
+      CharBuffer chars = CharBuffer.wrap(text);
+      CoderResult result;
+      do {
+        result = encoder.encode(chars, bytes, true);
+        drain(out);
+      } while (result.isOverflow());
+      do {
+        result = encoder.flush(bytes);
+        drain(out);
+      } while (result.isOverflow());
+    }
+
+    private void drain(OutputStream out) throws IOException {
+      out.write(bytes.array(), 0, bytes.position());
+      bytes.clear();
+    }
+  }
+}
@@ -19,7 +19,6 @@ package com.example;
 import java.io.IOException;
 import java.util.HashMap;
 import java.util.Map;
-import java.util.stream.Collectors;
 
 import javax.servlet.annotation.WebServlet;
 import javax.servlet.http.HttpServlet;
@@ -29,38 +28,52 @@ import javax.servlet.http.HttpServletResponse;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import com.google.actions.api.smarthome.SmartHomeApp;
-import com.google.auth.oauth2.GoogleCredentials;
 import com.google.gson.Gson;
+import com.google.gson.stream.JsonReader;
 
 /**
  * Handles request received via HTTP POST and delegates it to your Actions app. See: [Request
  * handling in Google App
  * Engine](https://cloud.google.com/appengine/docs/standard/java/how-requests-are-handled).
+ *
+ * <p>Posts to {@code /smarthome/create/bulk}, or with Content-Type {@code application/x-ndjson},
+ * create many devices at once; see {@link DeviceProvisioner}. They may be up to {@code
+ * smarthome.request.bulkMaxBytes} bytes, are answered with a JSON result per device, and request
+ * a SYNC once per affected user.
  */
-@WebServlet(name = "smarthomeCreate", urlPatterns = "/smarthome/create")
+@WebServlet(
+    name = "smarthomeCreate",
+    urlPatterns = {"/smarthome/create", "/smarthome/create/bulk"})
 public class SmartHomeCreateServlet extends HttpServlet {
   private static final Logger LOGGER = LoggerFactory.getLogger(MySmartHomeApp.class);
-  private static MyDataStore database = MyDataStore.getInstance();
+  private static final long BULK_MAX_BYTES =
+      Config.getLong("smarthome.request.bulkMaxBytes", 64 << 20);
+  private static final AppContext CONTEXT = AppContext.getInstance();
+  private static MyDataStore database = CONTEXT.getDatabase();
+  private static final Gson GSON = CONTEXT.getGson();
 
-  // Setup creds for requestSync
-  private final SmartHomeApp actionsApp = new MySmartHomeApp();
+  private final MySmartHomeApp actionsApp = CONTEXT.getApp();
 
-  {
-    try {
-      GoogleCredentials credentials =
-          GoogleCredentials.fromStream(getClass().getResourceAsStream("/smart-home-key.json"));
-      actionsApp.setCredentials(credentials);
-    } catch (Exception e) {
-      LOGGER.error("couldn't load credentials");
-    }
+  private static boolean isBulk(HttpServletRequest req) {
+    String contentType = req.getContentType();
+    return "/smarthome/create/bulk".equals(req.getServletPath())
+        || (contentType != null && contentType.startsWith("application/x-ndjson"));
   }
 
   @Override
   protected void doPost(HttpServletRequest req, HttpServletResponse res) throws IOException {
-    String body = req.getReader().lines().collect(Collectors.joining());
-    LOGGER.info("doPost, body = {}", body);
-    Map<String, Object> device = new Gson().fromJson(body, HashMap.class);
+    if (isBulk(req)) {
+      doBulkPost(req, res);
+      return;
+    }
+    Map<String, Object> device;
+    try {
+      device = RequestBodies.readJson(req, HashMap.class);
+    } catch (RequestBodies.TooLargeException e) {
+      res.sendError(HttpServletResponse.SC_REQUEST_ENTITY_TOO_LARGE);
+      return;
+    }
+    LOGGER.debug("doPost, body = {}", device);
 
     String userId = (String) device.get("userId");
     Map<String, Object> deviceData = (Map<String, Object>) device.get("data");
@@ -76,11 +89,7 @@ public class SmartHomeCreateServlet extends HttpServlet {
       return;
     }
 
-    try {
-      actionsApp.requestSync(userId);
-    } catch (Exception e) {
-      LOGGER.error("request sync failed: {}", e);
-    }
+    actionsApp.requestSyncLater(userId);
 
     res.setStatus(HttpServletResponse.SC_OK);
     res.setHeader("Access-Control-Allow-Origin", "*");
@@ -88,6 +97,39 @@ public class SmartHomeCreateServlet extends HttpServlet {
     res.getWriter().println("OK");
   }
 
+  private void doBulkPost(HttpServletRequest req, HttpServletResponse res) throws IOException {
+    DeviceProvisioner.Report report;
+    try (JsonReader body = new JsonReader(RequestBodies.openReader(req, BULK_MAX_BYTES))) {
+      report = new DeviceProvisioner(database).provision(body);
+    } catch (RequestBodies.TooLargeException e) {
+      res.sendError(HttpServletResponse.SC_REQUEST_ENTITY_TOO_LARGE);
+      return;
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      res.sendError(HttpServletResponse.SC_SERVICE_UNAVAILABLE);
+      return;
+    }
+    LOGGER.info(
+        "bulk create: {} devices written, {} failed, {} users",
+        report.succeeded,
+        report.failed,
+        report.users.size());
+
+    for (String userId : report.users) {
+      actionsApp.requestSyncLater(userId);
+    }
+
+    if (report.error == null) {
+      res.setStatus(HttpServletResponse.SC_OK);
+    } else if (report.tooLarge) {
+      res.setStatus(HttpServletResponse.SC_REQUEST_ENTITY_TOO_LARGE);
+    } else {
+      res.setStatus(HttpServletResponse.SC_BAD_REQUEST);
+    }
+    res.setHeader("Access-Control-Allow-Origin", "*");
+    ResponseBodies.writeJson(res, GSON.toJson(report), ResponseBodies.acceptsGzip(req));
+  }
+
   @Override
   protected void doGet(HttpServletRequest req, HttpServletResponse res) throws IOException {
     res.setContentType("text/plain");
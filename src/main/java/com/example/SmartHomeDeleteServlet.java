@@ -17,7 +17,8 @@
 package com.example;
 
 import java.io.IOException;
-import java.util.stream.Collectors;
+import java.util.ArrayList;
+import java.util.List;
 
 import javax.servlet.annotation.WebServlet;
 import javax.servlet.http.HttpServlet;
@@ -27,39 +28,44 @@ import javax.servlet.http.HttpServletResponse;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import com.google.actions.api.smarthome.SmartHomeApp;
-import com.google.auth.oauth2.GoogleCredentials;
+import com.google.gson.Gson;
+import com.google.gson.JsonElement;
 import com.google.gson.JsonObject;
-import com.google.gson.JsonParser;
 
 /**
  * Handles request received via HTTP POST and delegates it to your Actions app. See: [Request
  * handling in Google App
  * Engine](https://cloud.google.com/appengine/docs/standard/java/how-requests-are-handled).
+ *
+ * <p>A body with {@code deviceIds}, {@code roomHint} or {@code "all": true} instead of a {@code
+ * deviceId} starts a background deletion of those devices of the user; see {@link
+ * DeviceReclaimer}. The response is the job, whose progress GET {@code /smarthome/delete?job=id}
+ * returns. A SYNC is requested once the job has deleted any device.
  */
 @WebServlet(name = "smarthomeDelete", urlPatterns = "/smarthome/delete")
 public class SmartHomeDeleteServlet extends HttpServlet {
   private static final Logger LOGGER = LoggerFactory.getLogger(MySmartHomeApp.class);
-  private static MyDataStore database = MyDataStore.getInstance();
+  private static final AppContext CONTEXT = AppContext.getInstance();
+  private static MyDataStore database = CONTEXT.getDatabase();
+  private static final Gson GSON = CONTEXT.getGson();
 
-  private final SmartHomeApp actionsApp = new MySmartHomeApp();
-
-  {
-    try {
-      GoogleCredentials credentials =
-          GoogleCredentials.fromStream(getClass().getResourceAsStream("/smart-home-key.json"));
-      actionsApp.setCredentials(credentials);
-    } catch (Exception e) {
-      LOGGER.error("couldn't load credentials");
-    }
-  }
+  private final MySmartHomeApp actionsApp = CONTEXT.getApp();
 
   @Override
   protected void doPost(HttpServletRequest req, HttpServletResponse res) throws IOException {
-    String body = req.getReader().lines().collect(Collectors.joining());
-    LOGGER.info("doPost, body = {}", body);
-    JsonObject bodyJson = new JsonParser().parse(body).getAsJsonObject();
+    JsonObject bodyJson;
+    try {
+      bodyJson = RequestBodies.readJson(req, JsonObject.class);
+    } catch (RequestBodies.TooLargeException e) {
+      res.sendError(HttpServletResponse.SC_REQUEST_ENTITY_TOO_LARGE);
+      return;
+    }
+    LOGGER.debug("doPost, body = {}", bodyJson);
     String userId = bodyJson.get("userId").getAsString();
+    if (!bodyJson.has("deviceId")) {
+      startJob(userId, bodyJson, res);
+      return;
+    }
     String deviceId = bodyJson.get("deviceId").getAsString();
     try {
       database.deleteDevice(userId, deviceId);
@@ -72,11 +78,7 @@ public class SmartHomeDeleteServlet extends HttpServlet {
       return;
     }
 
-    try {
-      actionsApp.requestSync(userId);
-    } catch (Exception e) {
-      LOGGER.error("request sync failed: {}", e);
-    }
+    actionsApp.requestSyncLater(userId);
 
     res.setStatus(HttpServletResponse.SC_OK);
     res.setHeader("Access-Control-Allow-Origin", "*");
@@ -84,9 +86,50 @@ public class SmartHomeDeleteServlet extends HttpServlet {
     res.getWriter().println("OK");
   }
 
+  private void startJob(String userId, JsonObject bodyJson, HttpServletResponse res)
+      throws IOException {
+    DeviceReclaimer reclaimer = DeviceReclaimer.getInstance();
+    DeviceReclaimer.Job job;
+    if (bodyJson.has("deviceIds")) {
+      List<String> deviceIds = new ArrayList<>();
+      for (JsonElement deviceId : bodyJson.getAsJsonArray("deviceIds")) {
+        deviceIds.add(deviceId.getAsString());
+      }
+      job = reclaimer.deleteDevices(userId, deviceIds, this::requestSync);
+    } else if (bodyJson.has("roomHint")) {
+      job = reclaimer.deleteRoom(userId, bodyJson.get("roomHint").getAsString(), this::requestSync);
+    } else if (bodyJson.has("all") && bodyJson.get("all").getAsBoolean()) {
+      job = reclaimer.deleteAll(userId, this::requestSync);
+    } else {
+      res.sendError(
+          HttpServletResponse.SC_BAD_REQUEST, "expected deviceId, deviceIds, roomHint or all");
+      return;
+    }
+    res.setStatus(HttpServletResponse.SC_ACCEPTED);
+    res.setHeader("Access-Control-Allow-Origin", "*");
+    ResponseBodies.writeJson(res, GSON.toJson(job), false);
+  }
+
+  private void requestSync(DeviceReclaimer.Job job) {
+    if (job.deleted > 0) {
+      actionsApp.requestSyncLater(job.userId);
+    }
+  }
+
   @Override
   protected void doGet(HttpServletRequest request, HttpServletResponse response)
       throws IOException {
+    String jobId = request.getParameter("job");
+    if (jobId != null) {
+      DeviceReclaimer.Job job = DeviceReclaimer.getInstance().getJob(jobId);
+      if (job == null) {
+        response.sendError(HttpServletResponse.SC_NOT_FOUND);
+        return;
+      }
+      response.setHeader("Access-Control-Allow-Origin", "*");
+      ResponseBodies.writeJson(response, GSON.toJson(job), false);
+      return;
+    }
     response.setContentType("text/plain");
     response.getWriter().println("/smarthome/delete is a POST call");
   }
@@ -20,9 +20,18 @@ import java.io.IOException;
 import java.util.Enumeration;
 import java.util.HashMap;
 import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ExecutionException;
-import java.util.stream.Collectors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 
+import javax.servlet.AsyncContext;
+import javax.servlet.AsyncEvent;
+import javax.servlet.AsyncListener;
 import javax.servlet.ServletException;
 import javax.servlet.annotation.WebServlet;
 import javax.servlet.http.HttpServlet;
@@ -33,46 +42,150 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import com.google.actions.api.smarthome.SmartHomeApp;
-import com.google.auth.oauth2.GoogleCredentials;
 
 /**
  * Handles request received via HTTP POST and delegates it to your Actions app. See: [Request
  * handling in Google App
  * Engine](https://cloud.google.com/appengine/docs/standard/java/how-requests-are-handled).
+ *
+ * <p>Unless {@code smarthome.servlet.async} is false, requests are handled asynchronously: the
+ * container thread is released as soon as the body is read, fulfillment runs on a bounded pool of
+ * {@code smarthome.fulfillment.threads} threads, and the response is written on completion. When
+ * that pool and its queue of {@code smarthome.fulfillment.queue} requests are full, new requests
+ * are answered with 503 rather than piling up.
  */
-@WebServlet(name = "smarthome", urlPatterns = "/smarthome")
+@WebServlet(name = "smarthome", urlPatterns = "/smarthome", asyncSupported = true)
 public class SmartHomeServlet extends HttpServlet {
   private static final Logger LOG = LoggerFactory.getLogger(MySmartHomeApp.class);
-  private final SmartHomeApp actionsApp = new MySmartHomeApp();
+  private final AppContext context = AppContext.getInstance();
+  private final SmartHomeApp actionsApp = context.getApp();
+  private final boolean async = Config.getBoolean("smarthome.servlet.async", true);
+  private final long asyncTimeoutMs = Config.getLong("smarthome.servlet.asyncTimeoutMs", 30000);
+  private ThreadPoolExecutor fulfillment;
 
-  {
-    try {
-      GoogleCredentials credentials =
-          GoogleCredentials.fromStream(getClass().getResourceAsStream("/smart-home-key.json"));
-      actionsApp.setCredentials(credentials);
-    } catch (Exception e) {
-      LOG.error("couldn't load credentials");
+  @Override
+  public void init() throws ServletException {
+    int threads = Config.getInt("smarthome.fulfillment.threads", 64);
+    AtomicInteger count = new AtomicInteger();
+    fulfillment =
+        new ThreadPoolExecutor(
+            threads,
+            threads,
+            60,
+            TimeUnit.SECONDS,
+            new ArrayBlockingQueue<>(Config.getInt("smarthome.fulfillment.queue", 1000)),
+            runnable -> {
+              Thread thread = new Thread(runnable, "fulfillment-" + count.incrementAndGet());
+              thread.setDaemon(true);
+              return thread;
+            });
+    fulfillment.allowCoreThreadTimeOut(true);
+  }
+
+  @Override
+  public void destroy() {
+    if (fulfillment != null) {
+      fulfillment.shutdown();
     }
   }
 
   @Override
   protected void doPost(HttpServletRequest req, HttpServletResponse res)
       throws IOException, ServletException {
-    String body = req.getReader().lines().collect(Collectors.joining());
-    LOG.info("doPost, body = {}", body);
+    long start = System.nanoTime();
+    String body;
+    try {
+      body = RequestBodies.readString(req);
+    } catch (RequestBodies.TooLargeException e) {
+      res.sendError(HttpServletResponse.SC_REQUEST_ENTITY_TOO_LARGE);
+      return;
+    }
+    LOG.debug("doPost, body = {}", body);
     Map<String, String> headerMap = getHeaderMap(req);
+    boolean gzip = ResponseBodies.acceptsGzip(req);
+    if (async && fulfillment != null && req.isAsyncSupported()) {
+      handleAsync(req, body, headerMap, gzip, start);
+      return;
+    }
     try {
       String response = actionsApp.handleRequest(body, headerMap).get();
-      res.setStatus(HttpServletResponse.SC_OK);
-      res.setHeader("Access-Control-Allow-Origin", "*");
-      res.setContentType("application/json");
-      writeResponse(res, response);
+      writeResponse(res, response, gzip);
+      context.requestServed(start);
     } catch (ExecutionException | InterruptedException e) {
       LOG.error("failed to handle fulfillment request", e);
       throw new ServletException(e);
     }
   }
 
+  private void handleAsync(
+      HttpServletRequest req, String body, Map<String, String> headerMap, boolean gzip, long start)
+      throws IOException {
+    AsyncContext asyncContext = req.startAsync();
+    asyncContext.setTimeout(asyncTimeoutMs);
+    // Set once by whichever of completion and timeout comes first; the other must not respond.
+    AtomicBoolean done = new AtomicBoolean();
+    asyncContext.addListener(
+        new AsyncListener() {
+          @Override
+          public void onTimeout(AsyncEvent event) throws IOException {
+            if (done.compareAndSet(false, true)) {
+              LOG.error("fulfillment request timed out after {} ms", asyncTimeoutMs);
+              fail(asyncContext, HttpServletResponse.SC_SERVICE_UNAVAILABLE);
+            }
+          }
+
+          @Override
+          public void onComplete(AsyncEvent event) {}
+
+          @Override
+          public void onError(AsyncEvent event) {}
+
+          @Override
+          public void onStartAsync(AsyncEvent event) {}
+        });
+
+    CompletableFuture<String> response;
+    try {
+      response =
+          CompletableFuture.supplyAsync(
+                  () -> actionsApp.handleRequest(body, headerMap), fulfillment)
+              .thenCompose(future -> future);
+    } catch (RejectedExecutionException e) {
+      LOG.error("fulfillment pool saturated, rejecting request");
+      done.set(true);
+      fail(asyncContext, HttpServletResponse.SC_SERVICE_UNAVAILABLE);
+      return;
+    }
+    response.whenComplete(
+        (json, error) -> {
+          if (!done.compareAndSet(false, true)) {
+            return;
+          }
+          HttpServletResponse res = (HttpServletResponse) asyncContext.getResponse();
+          try {
+            if (error != null) {
+              LOG.error("failed to handle fulfillment request", error);
+              res.sendError(HttpServletResponse.SC_INTERNAL_SERVER_ERROR);
+            } else {
+              writeResponse(res, json, gzip);
+              context.requestServed(start);
+            }
+          } catch (IOException | RuntimeException e) {
+            LOG.error("failed to write fulfillment response", e);
+          } finally {
+            asyncContext.complete();
+          }
+        });
+  }
+
+  private static void fail(AsyncContext asyncContext, int status) throws IOException {
+    try {
+      ((HttpServletResponse) asyncContext.getResponse()).sendError(status);
+    } finally {
+      asyncContext.complete();
+    }
+  }
+
   @Override
   protected void doGet(HttpServletRequest request, HttpServletResponse response)
       throws IOException {
@@ -84,10 +197,12 @@ public class SmartHomeServlet extends HttpServlet {
                 + "request to respond with Action response.");
   }
 
-  private void writeResponse(HttpServletResponse res, String asJson) throws IOException {
-    System.out.println("response = " + asJson);
-    res.getWriter().write(asJson);
-    res.getWriter().flush();
+  private void writeResponse(HttpServletResponse res, String asJson, boolean gzip)
+      throws IOException {
+    res.setStatus(HttpServletResponse.SC_OK);
+    res.setHeader("Access-Control-Allow-Origin", "*");
+    LOG.debug("response = {}", asJson);
+    ResponseBodies.writeJson(res, asJson, gzip);
   }
 
   private Map<String, String> getHeaderMap(HttpServletRequest req) {
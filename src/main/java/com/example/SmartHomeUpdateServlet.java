@@ -22,7 +22,6 @@ import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
-import java.util.stream.Collectors;
 
 import javax.servlet.annotation.WebServlet;
 import javax.servlet.http.HttpServlet;
@@ -32,45 +31,59 @@ import javax.servlet.http.HttpServletResponse;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import com.google.actions.api.smarthome.SmartHomeApp;
-import com.google.auth.oauth2.GoogleCredentials;
 import com.google.gson.Gson;
 import com.google.gson.JsonObject;
-import com.google.gson.JsonParser;
+import com.google.gson.stream.JsonReader;
 
 /**
  * Handles request received via HTTP POST and delegates it to your Actions app. See: [Request
  * handling in Google App
  * Engine](https://cloud.google.com/appengine/docs/standard/java/how-requests-are-handled).
+ *
+ * <p>Posts to {@code /smarthome/update/bulk}, or with Content-Type {@code application/x-ndjson},
+ * carry many state updates; see {@link StateIngester}. They may be up to {@code
+ * smarthome.request.bulkMaxBytes} bytes, report each user's new states in as few requests as
+ * possible, and are answered with counts plus the position and error of each failed update.
  */
-@WebServlet(name = "smarthomeUpdate", urlPatterns = "/smarthome/update")
+@WebServlet(
+    name = "smarthomeUpdate",
+    urlPatterns = {"/smarthome/update", "/smarthome/update/bulk"})
 public class SmartHomeUpdateServlet extends HttpServlet {
   private static final Logger LOGGER = LoggerFactory.getLogger(MySmartHomeApp.class);
-  private static MyDataStore database = MyDataStore.getInstance();
-  private final SmartHomeApp actionsApp = new MySmartHomeApp();
+  private static final long BULK_MAX_BYTES =
+      Config.getLong("smarthome.request.bulkMaxBytes", 64 << 20);
+  private static final AppContext CONTEXT = AppContext.getInstance();
+  private static MyDataStore database = CONTEXT.getDatabase();
+  private static final Gson GSON = CONTEXT.getGson();
+  private final MySmartHomeApp actionsApp = CONTEXT.getApp();
   private static final List<String> UPDATE_DEVICE_PARAMS_KEYS =
       Arrays.asList(new String[] {"name", "nickname", "localDeviceId", "errorCode", "tfa"});
 
-  {
-    try {
-      GoogleCredentials credentials =
-          GoogleCredentials.fromStream(getClass().getResourceAsStream("/smart-home-key.json"));
-      actionsApp.setCredentials(credentials);
-    } catch (Exception e) {
-      LOGGER.error("couldn't load credentials");
-    }
+  private static boolean isBulk(HttpServletRequest req) {
+    String contentType = req.getContentType();
+    return "/smarthome/update/bulk".equals(req.getServletPath())
+        || (contentType != null && contentType.startsWith("application/x-ndjson"));
   }
 
   @Override
   protected void doPost(HttpServletRequest req, HttpServletResponse res) throws IOException {
-    String body = req.getReader().lines().collect(Collectors.joining());
-    LOGGER.info("doPost, body = {}", body);
-    JsonObject bodyJson = new JsonParser().parse(body).getAsJsonObject();
+    if (isBulk(req)) {
+      doBulkPost(req, res);
+      return;
+    }
+    JsonObject bodyJson;
+    try {
+      bodyJson = RequestBodies.readJson(req, JsonObject.class);
+    } catch (RequestBodies.TooLargeException e) {
+      res.sendError(HttpServletResponse.SC_REQUEST_ENTITY_TOO_LARGE);
+      return;
+    }
+    LOGGER.debug("doPost, body = {}", bodyJson);
     String userId = bodyJson.get("userId").getAsString();
     String deviceId = bodyJson.get("deviceId").getAsString();
     JsonObject states = bodyJson.getAsJsonObject("states");
     Map<String, Object> deviceStates =
-        states != null ? new Gson().fromJson(states, HashMap.class) : null;
+        states != null ? GSON.fromJson(states, HashMap.class) : null;
     Map<String, String> deviceParams = new HashMap<>();
     Set<String> deviceParamsKeys = bodyJson.keySet();
     deviceParamsKeys.retainAll(UPDATE_DEVICE_PARAMS_KEYS);
@@ -78,12 +91,12 @@ public class SmartHomeUpdateServlet extends HttpServlet {
       deviceParams.put(k, bodyJson.get(k).getAsString());
     }
     try {
-      database.updateDevice(userId, deviceId, deviceStates, deviceParams);
-      if (deviceParams.containsKey("localDeviceId")) {
-        actionsApp.requestSync(userId);
+      Set<String> changed = database.updateDevice(userId, deviceId, deviceStates, deviceParams);
+      if (changed.contains("otherDeviceIds")) {
+        actionsApp.requestSyncLater(userId);
       }
-      if (states != null) {
-        ReportState.makeRequest(actionsApp, userId, deviceId, states);
+      if (changed.contains("states")) {
+        actionsApp.reportStates(userId, deviceId, deviceStates);
       }
     } catch (Exception e) {
       LOGGER.error("failed to update device: {}", e);
@@ -100,6 +113,35 @@ public class SmartHomeUpdateServlet extends HttpServlet {
     res.getWriter().println("OK");
   }
 
+  private void doBulkPost(HttpServletRequest req, HttpServletResponse res) throws IOException {
+    StateIngester.Report report;
+    try (JsonReader body = new JsonReader(RequestBodies.openReader(req, BULK_MAX_BYTES))) {
+      report = new StateIngester(database).ingest(body);
+    } catch (RequestBodies.TooLargeException e) {
+      res.sendError(HttpServletResponse.SC_REQUEST_ENTITY_TOO_LARGE);
+      return;
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      res.sendError(HttpServletResponse.SC_SERVICE_UNAVAILABLE);
+      return;
+    }
+    LOGGER.debug("bulk update: {} accepted, {} failed", report.accepted, report.failed);
+
+    for (Map.Entry<String, Map<String, Map<String, Object>>> user : report.written.entrySet()) {
+      actionsApp.reportStates(user.getKey(), user.getValue());
+    }
+
+    if (report.error == null) {
+      res.setStatus(HttpServletResponse.SC_OK);
+    } else if (report.tooLarge) {
+      res.setStatus(HttpServletResponse.SC_REQUEST_ENTITY_TOO_LARGE);
+    } else {
+      res.setStatus(HttpServletResponse.SC_BAD_REQUEST);
+    }
+    res.setHeader("Access-Control-Allow-Origin", "*");
+    ResponseBodies.writeJson(res, GSON.toJson(report), ResponseBodies.acceptsGzip(req));
+  }
+
   @Override
   protected void doGet(HttpServletRequest request, HttpServletResponse response)
       throws IOException {
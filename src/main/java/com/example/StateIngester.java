@@ -0,0 +1,181 @@
+/*
+ * Copyright 2019 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.api.core.ApiFuture;
+import com.google.gson.Gson;
+import com.google.gson.JsonParseException;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+
+/**
+ * Applies many device state updates from one request body: either a JSON array or a stream of
+ * newline-delimited JSON objects, each {@code {"userId": ..., "deviceId": ..., "states": {...}}}.
+ * Several updates of one device are folded into the last, as applying them in order would leave
+ * the same states. The remaining writes go through one batch of {@link MyDataStore#newBatch}, which
+ * orders each one with the device's other mutations, such as EXECUTE commands.
+ */
+final class StateIngester {
+  private static final Logger LOGGER = LoggerFactory.getLogger(MySmartHomeApp.class);
+  private static final Gson GSON = new Gson();
+
+  private final MyDataStore database;
+
+  /** An update that failed, by its position in the body. */
+  static final class Failure {
+    final int index;
+    final String error;
+
+    Failure(int index, String error) {
+      this.index = index;
+      this.error = error;
+    }
+  }
+
+  static final class Report {
+    int accepted;
+    int failed;
+    /** Why reading stopped before the end of the body, if it did. */
+    String error;
+
+    final List<Failure> failures = new ArrayList<>();
+    /** The written states to report, by user and device. */
+    final transient Map<String, Map<String, Map<String, Object>>> written = new LinkedHashMap<>();
+    transient boolean tooLarge;
+  }
+
+  private static final class Update {
+    final String userId;
+    final String deviceId;
+    final Map<String, Object> states;
+    final String error;
+
+    Update(String userId, String deviceId, Map<String, Object> states, String error) {
+      this.userId = userId;
+      this.deviceId = deviceId;
+      this.states = states;
+      this.error = error;
+    }
+
+    String key() {
+      return userId + '\u0000' + deviceId;
+    }
+  }
+
+  StateIngester(MyDataStore database) {
+    this.database = database;
+  }
+
+  Report ingest(JsonReader body) throws InterruptedException {
+    body.setLenient(true);
+    Report report = new Report();
+    List<Update> updates = new ArrayList<>();
+    try {
+      boolean array = body.peek() == JsonToken.BEGIN_ARRAY;
+      if (array) {
+        body.beginArray();
+      }
+      while (array ? body.hasNext() : body.peek() != JsonToken.END_DOCUMENT) {
+        updates.add(update(GSON.fromJson(body, HashMap.class)));
+      }
+      if (array) {
+        body.endArray();
+      }
+    } catch (IOException | JsonParseException | IllegalStateException e) {
+      // Updates read so far are still applied; the body is only read up to the failure.
+      for (Throwable cause = e; cause != null; cause = cause.getCause()) {
+        report.tooLarge |= cause instanceof RequestBodies.TooLargeException;
+      }
+      report.error = e.getMessage();
+    }
+
+    Map<String, Update> latest = new LinkedHashMap<>();
+    for (Update update : updates) {
+      if (update.error == null) {
+        latest.put(update.key(), update);
+      }
+    }
+    Map<String, ApiFuture<?>> writes = new HashMap<>();
+    DeviceStore.Batch batch = database.newBatch();
+    try {
+      for (Map.Entry<String, Update> update : latest.entrySet()) {
+        Update write = update.getValue();
+        writes.put(update.getKey(), batch.updateStates(write.userId, write.deviceId, write.states));
+      }
+    } finally {
+      try {
+        batch.close();
+      } catch (ExecutionException e) {
+        LOGGER.error("failed to flush state batch", e.getCause());
+      }
+    }
+
+    Map<String, String> errors = new HashMap<>();
+    for (Map.Entry<String, ApiFuture<?>> write : writes.entrySet()) {
+      Update update = latest.get(write.getKey());
+      try {
+        write.getValue().get();
+        report.written
+            .computeIfAbsent(update.userId, userId -> new LinkedHashMap<>())
+            .put(update.deviceId, update.states);
+      } catch (ExecutionException e) {
+        LOGGER.error("updating device {} failed: {}", update.deviceId, e.getCause());
+        errors.put(write.getKey(), String.valueOf(e.getCause().getMessage()));
+      }
+    }
+    for (int i = 0; i < updates.size(); i++) {
+      Update update = updates.get(i);
+      String error = update.error != null ? update.error : errors.get(update.key());
+      if (error == null) {
+        report.accepted++;
+      } else {
+        report.failed++;
+        report.failures.add(new Failure(i, error));
+      }
+    }
+    return report;
+  }
+
+  @SuppressWarnings("unchecked")
+  private static Update update(Map<String, Object> update) {
+    Object userId = update != null ? update.get("userId") : null;
+    Object deviceId = update != null ? update.get("deviceId") : null;
+    Object states = update != null ? update.get("states") : null;
+    String error = null;
+    if (!(userId instanceof String)) {
+      error = "missing userId";
+    } else if (!(deviceId instanceof String)) {
+      error = "missing deviceId";
+    } else if (!(states instanceof Map)) {
+      error = "missing states";
+    }
+    return error != null
+        ? new Update(null, null, null, error)
+        : new Update((String) userId, (String) deviceId, (Map<String, Object>) states, null);
+  }
+}
@@ -0,0 +1,143 @@
+/*
+ * Copyright 2019 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example;
+
+import java.lang.reflect.Array;
+import java.util.Map;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonPrimitive;
+import com.google.protobuf.ListValue;
+import com.google.protobuf.NullValue;
+import com.google.protobuf.Struct;
+import com.google.protobuf.Value;
+
+/**
+ * Converts device documents, i.e. maps, lists and primitives as read from the store or parsed by
+ * Gson, straight into protobuf Structs without going through JSON text. Like that text, null
+ * members of objects are left out and every number becomes a double.
+ */
+final class StructConverter {
+  private static final Gson GSON = new Gson();
+
+  private StructConverter() {}
+
+  /** How the members of an object are named in the Struct. */
+  private enum Naming {
+    AS_IS,
+    // The top level of a device's states, where the color state gets the COLOR naming.
+    STATES,
+    COLOR
+  }
+
+  static Struct toStruct(Map<String, ?> map) {
+    return toStruct(map.entrySet(), Naming.AS_IS);
+  }
+
+  /**
+   * Converts the states of a device for HomeGraph, renaming the ColorSetting state
+   * color.spectrumRgb to spectrumRGB on the way. See
+   * https://developers.google.com/assistant/smarthome/traits/colorsetting#device-states
+   */
+  static Struct toStateStruct(Map<String, ?> states) {
+    return toStruct(states.entrySet(), Naming.STATES);
+  }
+
+  private static Struct toStruct(Iterable<? extends Map.Entry<String, ?>> members, Naming naming) {
+    Struct.Builder struct = Struct.newBuilder();
+    for (Map.Entry<String, ?> member : members) {
+      String name = member.getKey();
+      Object value = member.getValue();
+      if (value == null || (value instanceof JsonElement && ((JsonElement) value).isJsonNull())) {
+        continue;
+      }
+      if (naming == Naming.STATES && name.equals("color")) {
+        struct.putFields(name, toValue(value, Naming.COLOR));
+      } else if (naming == Naming.COLOR && name.equals("spectrumRgb")) {
+        struct.putFields("spectrumRGB", toValue(value));
+      } else {
+        struct.putFields(name, toValue(value));
+      }
+    }
+    return struct.build();
+  }
+
+  static Value toValue(Object value) {
+    return toValue(value, Naming.AS_IS);
+  }
+
+  private static Value toValue(Object value, Naming naming) {
+    if (value == null) {
+      return Value.newBuilder().setNullValue(NullValue.NULL_VALUE).build();
+    } else if (value instanceof JsonElement) {
+      return toValue((JsonElement) value, naming);
+    } else if (value instanceof Value) {
+      return (Value) value;
+    } else if (value instanceof Struct) {
+      return Value.newBuilder().setStructValue((Struct) value).build();
+    } else if (value instanceof Boolean) {
+      return Value.newBuilder().setBoolValue((Boolean) value).build();
+    } else if (value instanceof Number) {
+      return Value.newBuilder().setNumberValue(((Number) value).doubleValue()).build();
+    } else if (value instanceof CharSequence || value instanceof Character) {
+      return Value.newBuilder().setStringValue(value.toString()).build();
+    } else if (value instanceof Enum) {
+      return Value.newBuilder().setStringValue(((Enum<?>) value).name()).build();
+    } else if (value instanceof Map) {
+      Struct struct = toStruct(((Map<String, ?>) value).entrySet(), naming);
+      return Value.newBuilder().setStructValue(struct).build();
+    } else if (value instanceof Iterable) {
+      ListValue.Builder list = ListValue.newBuilder();
+      for (Object element : (Iterable<?>) value) {
+        list.addValues(toValue(element));
+      }
+      return Value.newBuilder().setListValue(list).build();
+    } else if (value.getClass().isArray()) {
+      ListValue.Builder list = ListValue.newBuilder();
+      for (int i = 0; i < Array.getLength(value); i++) {
+        list.addValues(toValue(Array.get(value, i)));
+      }
+      return Value.newBuilder().setListValue(list).build();
+    }
+    // Anything else, e.g. a Firestore Timestamp, is converted the way Gson would write it.
+    return toValue(GSON.toJsonTree(value), naming);
+  }
+
+  private static Value toValue(JsonElement element, Naming naming) {
+    if (element.isJsonObject()) {
+      Struct struct = toStruct(element.getAsJsonObject().entrySet(), naming);
+      return Value.newBuilder().setStructValue(struct).build();
+    } else if (element.isJsonArray()) {
+      ListValue.Builder list = ListValue.newBuilder();
+      for (JsonElement member : (JsonArray) element) {
+        list.addValues(toValue(member));
+      }
+      return Value.newBuilder().setListValue(list).build();
+    } else if (element.isJsonPrimitive()) {
+      JsonPrimitive primitive = element.getAsJsonPrimitive();
+      if (primitive.isBoolean()) {
+        return Value.newBuilder().setBoolValue(primitive.getAsBoolean()).build();
+      } else if (primitive.isNumber()) {
+        return Value.newBuilder().setNumberValue(primitive.getAsDouble()).build();
+      }
+      return Value.newBuilder().setStringValue(primitive.getAsString()).build();
+    }
+    return Value.newBuilder().setNullValue(NullValue.NULL_VALUE).build();
+  }
+}
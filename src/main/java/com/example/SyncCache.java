@@ -0,0 +1,150 @@
+/*
+ * Copyright 2019 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+import com.google.actions.api.smarthome.SyncResponse;
+
+/**
+ * Bounded, least-recently-used cache of built SYNC devices per user. Every change to a user's
+ * device metadata made through this instance bumps that user's version, and an entry is only
+ * served while it carries the current version. Versions are kept in a fixed number of stripes, so
+ * their memory stays bounded too, at the cost of a bump occasionally invalidating another user's
+ * entry. The cache and its versions are per process: changes made through other instances are
+ * only seen once the entry expires, a fixed time after it was built, so keep that time short.
+ */
+final class SyncCache {
+
+  private static final int VERSION_STRIPES = 1024;
+
+  private final int maxUsers;
+  private final long ttlNanos;
+  private final LinkedHashMap<String, CachedSync> entries;
+  private final AtomicLongArray versions = new AtomicLongArray(VERSION_STRIPES);
+
+  private final LongAdder hits = new LongAdder();
+  private final LongAdder misses = new LongAdder();
+  private final LongAdder evictions = new LongAdder();
+  private final LongAdder invalidations = new LongAdder();
+
+  private static final class CachedSync {
+    final SyncResponse.Payload.Device[] devices;
+    final long version;
+    final long expiresAt;
+
+    CachedSync(SyncResponse.Payload.Device[] devices, long version, long expiresAt) {
+      this.devices = devices;
+      this.version = version;
+      this.expiresAt = expiresAt;
+    }
+  }
+
+  SyncCache(int maxUsers, long ttl, TimeUnit unit) {
+    this.maxUsers = maxUsers;
+    this.ttlNanos = unit.toNanos(ttl);
+    this.entries =
+        new LinkedHashMap<String, CachedSync>(16, 0.75f, true) {
+          @Override
+          protected boolean removeEldestEntry(Map.Entry<String, CachedSync> eldest) {
+            if (size() > SyncCache.this.maxUsers) {
+              evictions.increment();
+              return true;
+            }
+            return false;
+          }
+        };
+  }
+
+  private static int stripe(String userId) {
+    int hash = userId.hashCode();
+    return (hash ^ (hash >>> 16)) & (VERSION_STRIPES - 1);
+  }
+
+  /** Returns the version to pass to {@link #put} once the devices have been read. */
+  long version(String userId) {
+    return versions.get(stripe(userId));
+  }
+
+  /** Returns the user's SYNC devices, or null on a miss. */
+  SyncResponse.Payload.Device[] get(String userId) {
+    CachedSync entry;
+    synchronized (entries) {
+      entry = entries.get(userId);
+      if (entry != null
+          && (entry.version != version(userId) || entry.expiresAt - System.nanoTime() <= 0)) {
+        entries.remove(userId);
+        entry = null;
+      }
+    }
+    if (entry == null) {
+      misses.increment();
+      return null;
+    }
+    hits.increment();
+    return entry.devices.clone();
+  }
+
+  /** Caches the SYNC devices built from a read that started at {@code version}. */
+  void put(String userId, long version, SyncResponse.Payload.Device[] devices) {
+    if (maxUsers <= 0) {
+      return;
+    }
+    CachedSync entry = new CachedSync(devices.clone(), version, System.nanoTime() + ttlNanos);
+    synchronized (entries) {
+      // A change since the read began makes what was read stale.
+      if (version(userId) == version) {
+        entries.put(userId, entry);
+      }
+    }
+  }
+
+  /** Drops the user's cached devices; call whenever their device metadata changes. */
+  void invalidate(String userId) {
+    versions.incrementAndGet(stripe(userId));
+    invalidations.increment();
+    synchronized (entries) {
+      entries.remove(userId);
+    }
+  }
+
+  long hits() {
+    return hits.sum();
+  }
+
+  long misses() {
+    return misses.sum();
+  }
+
+  long evictions() {
+    return evictions.sum();
+  }
+
+  long invalidations() {
+    return invalidations.sum();
+  }
+
+  int size() {
+    synchronized (entries) {
+      return entries.size();
+    }
+  }
+}
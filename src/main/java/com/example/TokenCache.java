@@ -0,0 +1,152 @@
+/*
+ * Copyright 2019 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example;
+
+import java.util.Iterator;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Concurrent access token to userId cache. Unknown tokens are cached too, for a shorter time, and
+ * concurrent lookups of the same token share one backend query, so repeated bad tokens cost one
+ * collection query per negative TTL rather than one per request.
+ */
+final class TokenCache {
+
+  /** Looks up the user owning an access token, returning null if there is none. */
+  interface Loader {
+    String load(String accessToken) throws ExecutionException, InterruptedException;
+  }
+
+  private static final class CachedUser {
+    final String userId;
+    final long expiresAt;
+
+    CachedUser(String userId, long expiresAt) {
+      this.userId = userId;
+      this.expiresAt = expiresAt;
+    }
+  }
+
+  private final int maxSize;
+  private final long ttlNanos;
+  private final long negativeTtlNanos;
+  private final ConcurrentMap<String, CachedUser> entries = new ConcurrentHashMap<>();
+  private final ConcurrentMap<String, CompletableFuture<String>> loading =
+      new ConcurrentHashMap<>();
+
+  private final LongAdder hits = new LongAdder();
+  private final LongAdder negativeHits = new LongAdder();
+  private final LongAdder misses = new LongAdder();
+  private final LongAdder evictions = new LongAdder();
+
+  TokenCache(int maxSize, long ttl, long negativeTtl, TimeUnit unit) {
+    this.maxSize = maxSize;
+    this.ttlNanos = unit.toNanos(ttl);
+    this.negativeTtlNanos = unit.toNanos(negativeTtl);
+  }
+
+  /** Returns the user owning the token, or null if the token is unknown. */
+  String get(String accessToken, Loader loader) throws ExecutionException, InterruptedException {
+    CachedUser cached = entries.get(accessToken);
+    if (cached != null) {
+      if (cached.expiresAt - System.nanoTime() > 0) {
+        if (cached.userId != null) {
+          hits.increment();
+        } else {
+          negativeHits.increment();
+        }
+        return cached.userId;
+      }
+      entries.remove(accessToken, cached);
+    }
+    misses.increment();
+    if (maxSize <= 0) {
+      return loader.load(accessToken);
+    }
+
+    CompletableFuture<String> load = new CompletableFuture<>();
+    CompletableFuture<String> inFlight = loading.putIfAbsent(accessToken, load);
+    if (inFlight != null) {
+      return inFlight.get();
+    }
+    try {
+      String userId = loader.load(accessToken);
+      put(accessToken, userId);
+      load.complete(userId);
+      return userId;
+    } catch (ExecutionException | InterruptedException | RuntimeException e) {
+      load.completeExceptionally(e);
+      throw e;
+    } finally {
+      loading.remove(accessToken, load);
+    }
+  }
+
+  private void put(String accessToken, String userId) {
+    if (entries.size() >= maxSize) {
+      makeRoom();
+    }
+    long ttl = userId != null ? ttlNanos : negativeTtlNanos;
+    entries.put(accessToken, new CachedUser(userId, System.nanoTime() + ttl));
+  }
+
+  private void makeRoom() {
+    long now = System.nanoTime();
+    entries.values().removeIf(entry -> entry.expiresAt - now <= 0);
+    // Still full of live entries: drop arbitrary ones rather than grow without bound.
+    Iterator<String> tokens = entries.keySet().iterator();
+    while (entries.size() >= maxSize && tokens.hasNext()) {
+      tokens.next();
+      tokens.remove();
+      evictions.increment();
+    }
+  }
+
+  void invalidate(String accessToken) {
+    entries.remove(accessToken);
+  }
+
+  /** Drops every token resolving to this user, e.g. after the user document changed. */
+  void invalidateUser(String userId) {
+    entries.values().removeIf(entry -> userId.equals(entry.userId));
+  }
+
+  long hits() {
+    return hits.sum();
+  }
+
+  long negativeHits() {
+    return negativeHits.sum();
+  }
+
+  long misses() {
+    return misses.sum();
+  }
+
+  long evictions() {
+    return evictions.sum();
+  }
+
+  int size() {
+    return entries.size();
+  }
+}
@@ -0,0 +1,55 @@
+/*
+ * Copyright 2019 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example;
+
+import java.io.IOException;
+
+import javax.servlet.annotation.WebServlet;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Warms up the {@link AppContext} when the instance loads and again, as a no-op once done, on
+ * App Engine's {@code /_ah/warmup} request, which is sent before the instance gets any traffic
+ * when the warmup inbound service is enabled.
+ */
+@WebServlet(name = "warmup", urlPatterns = "/_ah/warmup", loadOnStartup = 1)
+public class WarmupServlet extends HttpServlet {
+  private static final Logger LOGGER = LoggerFactory.getLogger(MySmartHomeApp.class);
+
+  @Override
+  public void init() {
+    try {
+      AppContext.getInstance().warmUp();
+    } catch (RuntimeException e) {
+      // Leave it to the first request, which reports the failure to its caller.
+      LOGGER.error("failed to create the application context", e);
+    }
+  }
+
+  @Override
+  protected void doGet(HttpServletRequest req, HttpServletResponse res) throws IOException {
+    AppContext.getInstance().warmUp();
+    res.setStatus(HttpServletResponse.SC_OK);
+    res.setContentType("text/plain");
+    res.getWriter().println("OK");
+  }
+}
@@ -0,0 +1,75 @@
+/*
+ * Copyright 2019 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.jupiter.api.Test;
+
+class AppContextTest {
+  private final AtomicInteger warmUps = new AtomicInteger();
+
+  private AppContext context(boolean failWarmUp) {
+    DeviceStore store =
+        new InMemoryDeviceStore() {
+          @Override
+          public void warmUp() throws ExecutionException {
+            warmUps.incrementAndGet();
+            if (failWarmUp) {
+              throw new ExecutionException(new IllegalStateException("unavailable"));
+            }
+          }
+        };
+    return new AppContext(null, new MyDataStore(store), 0);
+  }
+
+  @Test
+  void testWarmsUpOnce() {
+    AppContext context = context(false);
+    assertEquals(-1, context.warmUpMillis());
+
+    context.warmUp();
+    context.warmUp();
+
+    assertEquals(1, warmUps.get());
+    assertTrue(context.warmUpMillis() >= 0);
+  }
+
+  @Test
+  void testFailedStepDoesNotStopWarmUp() {
+    AppContext context = context(true);
+
+    context.warmUp();
+
+    assertEquals(1, warmUps.get());
+    assertTrue(context.warmUpMillis() >= 0);
+  }
+
+  @Test
+  void testRecordsFirstRequestOnly() throws Exception {
+    AppContext context = context(false);
+    assertEquals(-1, context.firstRequestMillis());
+
+    context.requestServed(System.nanoTime() - 5_000_000_000L);
+    context.requestServed(System.nanoTime());
+
+    assertEquals(5, context.firstRequestMillis() / 1000);
+  }
+}
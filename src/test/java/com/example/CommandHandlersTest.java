@@ -0,0 +1,124 @@
+/*
+ * Copyright 2019 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import org.junit.jupiter.api.Test;
+
+class CommandHandlersTest {
+
+  private static CommandContext context(Map<String, Object> states, Map<String, Object> params) {
+    Map<String, Object> data = new HashMap<>();
+    data.put("states", states);
+    return new CommandContext(new DeviceDocument("light", data), params);
+  }
+
+  private static void execute(String command, CommandContext context) throws Exception {
+    CommandHandlers.get("action.devices.commands." + command).execute(context);
+  }
+
+  @Test
+  void testUnknownCommandHasNoHandler() {
+    assertNull(CommandHandlers.get("action.devices.commands.SelfDestruct"));
+  }
+
+  @Test
+  void testColorAbsoluteWritesNestedField() throws Exception {
+    Map<String, Object> color = new HashMap<>();
+    color.put("spectrumRGB", 16711680);
+    Map<String, Object> params = new HashMap<>();
+    params.put("color", color);
+    CommandContext context = context(new HashMap<>(), params);
+
+    execute("ColorAbsolute", context);
+
+    assertEquals(16711680, context.getUpdates().get("states.color.spectrumRgb"));
+    assertEquals(16711680, context.getStates().get("spectrumRgb"));
+  }
+
+  @Test
+  void testTimerCommandsNeedRunningTimer() {
+    Map<String, Object> states = new HashMap<>();
+    // Firestore returns whole numbers as Long.
+    states.put("timerRemainingSec", -1L);
+    CommandContext context = context(states, new HashMap<>());
+
+    Exception e = assertThrows(RuntimeException.class, () -> execute("TimerPause", context));
+
+    assertEquals("noTimerExists", e.getMessage());
+    assertTrue(context.getUpdates().isEmpty());
+  }
+
+  @Test
+  void testTimerAdjustAddsToStoredTime() throws Exception {
+    Map<String, Object> states = new HashMap<>();
+    states.put("timerRemainingSec", 60L);
+    Map<String, Object> params = new HashMap<>();
+    // Gson parses JSON numbers as Double.
+    params.put("timerTimeSec", 30.0);
+    CommandContext context = context(states, params);
+
+    execute("TimerAdjust", context);
+
+    assertEquals(90, context.getUpdates().get("states.timerRemainingSec"));
+    assertTrue(context.readsState());
+  }
+
+  @Test
+  void testGuestNetworkPasswordChangesNothing() throws Exception {
+    CommandContext context = context(new HashMap<>(), new HashMap<>());
+
+    execute("GetGuestNetworkPassword", context);
+
+    assertEquals("wifi-password-123", context.getStates().get("guestNetworkPassword"));
+    assertTrue(context.getUpdates().isEmpty());
+  }
+
+  @Test
+  void testThermostatReportsStoredMode() throws Exception {
+    Map<String, Object> states = new HashMap<>();
+    states.put("thermostatMode", "heat");
+    Map<String, Object> params = new HashMap<>();
+    params.put("thermostatTemperatureSetpoint", 21);
+    CommandContext context = context(states, params);
+
+    execute("ThermostatTemperatureSetpoint", context);
+
+    assertEquals(21, context.getUpdates().get("states.thermostatTemperatureSetpoint"));
+    assertEquals("heat", context.getStates().get("thermostatMode"));
+    assertFalse(context.readsState());
+  }
+
+  @Test
+  void testSetTemperatureDoesNotReadState() throws Exception {
+    Map<String, Object> states = new HashMap<>();
+    states.put("temperatureAmbientCelsius", 19L);
+    Map<String, Object> params = new HashMap<>();
+    params.put("temperature", 22.0);
+    CommandContext context = context(states, params);
+
+    execute("SetTemperature", context);
+
+    assertEquals(22.0, context.getUpdates().get("states.temperatureSetpointCelsius"));
+    assertEquals(19L, context.getStates().get("temperatureAmbientCelsius"));
+    assertFalse(context.readsState());
+  }
+}
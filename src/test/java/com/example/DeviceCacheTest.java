@@ -0,0 +1,107 @@
+/*
+ * Copyright 2019 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.jupiter.api.Test;
+
+class DeviceCacheTest {
+
+  private static Map<String, Object> device(boolean on) {
+    Map<String, Object> states = new HashMap<>();
+    states.put("on", on);
+    Map<String, Object> data = new HashMap<>();
+    data.put("states", states);
+    return data;
+  }
+
+  private static Object on(Map<String, Object> data) {
+    return ((Map<?, ?>) data.get("states")).get("on");
+  }
+
+  @Test
+  void testCountsHitsAndMisses() {
+    DeviceCache cache = new DeviceCache(10, 1, TimeUnit.MINUTES);
+
+    assertNull(cache.get("user", "light"));
+    cache.load("user", "light", cache.beginLoad("user", "light"), device(false));
+    assertNotNull(cache.get("user", "light"));
+
+    assertEquals(1, cache.hits());
+    assertEquals(1, cache.misses());
+  }
+
+  @Test
+  void testEvictsLeastRecentlyUsed() {
+    DeviceCache cache = new DeviceCache(2, 1, TimeUnit.MINUTES);
+    cache.put("user", "a", device(false));
+    cache.put("user", "b", device(false));
+    cache.get("user", "a");
+    cache.put("user", "c", device(false));
+
+    assertNotNull(cache.get("user", "a"));
+    assertNull(cache.get("user", "b"));
+    assertEquals(1, cache.evictions());
+    assertEquals(2, cache.size());
+  }
+
+  @Test
+  void testExpiresEntries() {
+    DeviceCache cache = new DeviceCache(10, 0, TimeUnit.MILLISECONDS);
+    cache.put("user", "light", device(false));
+
+    assertNull(cache.get("user", "light"));
+    assertEquals(1, cache.expirations());
+  }
+
+  @Test
+  void testWritesUpdateCachedDocument() {
+    DeviceCache cache = new DeviceCache(10, 1, TimeUnit.MINUTES);
+    cache.put("user", "light", device(false));
+
+    cache.update("user", "light", Collections.<String, Object>singletonMap("states.on", true));
+
+    assertEquals(true, on(cache.get("user", "light")));
+  }
+
+  @Test
+  void testDoesNotCacheReadThatRacedWithWrite() {
+    DeviceCache cache = new DeviceCache(10, 1, TimeUnit.MINUTES);
+    long token = cache.beginLoad("user", "light");
+    cache.update("user", "light", Collections.<String, Object>singletonMap("states.on", true));
+
+    cache.load("user", "light", token, device(false));
+
+    assertNull(cache.get("user", "light"));
+  }
+
+  @Test
+  void testReturnsCopies() {
+    DeviceCache cache = new DeviceCache(10, 1, TimeUnit.MINUTES);
+    cache.put("user", "light", device(false));
+
+    ((Map<String, Object>) cache.get("user", "light").get("states")).put("on", true);
+
+    assertEquals(false, on(cache.get("user", "light")));
+  }
+}
@@ -0,0 +1,171 @@
+/*
+ * Copyright 2019 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.jupiter.api.Test;
+
+class DeviceMailboxesTest {
+
+  @Test
+  void testRunsEachDeviceInSubmissionOrder() throws Exception {
+    DeviceMailboxes mailboxes = new DeviceMailboxes(4, 3);
+    List<Integer> applied = Collections.synchronizedList(new ArrayList<>());
+    AtomicInteger running = new AtomicInteger();
+    AtomicInteger maxRunning = new AtomicInteger();
+    List<CompletableFuture<Integer>> results = new ArrayList<>();
+    for (int i = 0; i < 50; i++) {
+      int value = i;
+      results.add(
+          mailboxes.submit(
+              "user",
+              "device",
+              () -> {
+                maxRunning.accumulateAndGet(running.incrementAndGet(), Math::max);
+                Thread.sleep(1);
+                applied.add(value);
+                running.decrementAndGet();
+                return value;
+              }));
+    }
+
+    for (int i = 0; i < 50; i++) {
+      assertEquals(i, results.get(i).get(5, TimeUnit.SECONDS));
+    }
+    assertEquals(1, maxRunning.get());
+    for (int i = 0; i < 50; i++) {
+      assertEquals(i, applied.get(i));
+    }
+    assertEquals(0, mailboxes.size());
+    assertEquals(0, mailboxes.pending());
+  }
+
+  @Test
+  void testSerializesConcurrentSubmitters() throws Exception {
+    DeviceMailboxes mailboxes = new DeviceMailboxes(2, 4);
+    ExecutorService submitters = Executors.newFixedThreadPool(8);
+    AtomicInteger running = new AtomicInteger();
+    AtomicInteger maxRunning = new AtomicInteger();
+    int[] counter = new int[1];
+    List<CompletableFuture<CompletableFuture<Void>>> submissions = new ArrayList<>();
+    for (int i = 0; i < 400; i++) {
+      submissions.add(
+          CompletableFuture.supplyAsync(
+              () ->
+                  mailboxes.submit(
+                      "user",
+                      "device",
+                      () -> {
+                        maxRunning.accumulateAndGet(running.incrementAndGet(), Math::max);
+                        counter[0]++;
+                        running.decrementAndGet();
+                        return null;
+                      }),
+              submitters));
+    }
+
+    for (CompletableFuture<CompletableFuture<Void>> submission : submissions) {
+      submission.get(5, TimeUnit.SECONDS).get(5, TimeUnit.SECONDS);
+    }
+    submitters.shutdown();
+    assertEquals(1, maxRunning.get());
+    assertEquals(400, counter[0]);
+  }
+
+  @Test
+  void testRunsDevicesInParallel() throws Exception {
+    DeviceMailboxes mailboxes = new DeviceMailboxes(2, 16);
+    CountDownLatch bothRunning = new CountDownLatch(2);
+    ExecutorService submitters = Executors.newFixedThreadPool(2);
+    List<CompletableFuture<Boolean>> results = new ArrayList<>();
+    for (String deviceId : new String[] {"a", "b"}) {
+      results.add(
+          CompletableFuture.supplyAsync(
+                  () ->
+                      mailboxes.submit(
+                          "user",
+                          deviceId,
+                          () -> {
+                            bothRunning.countDown();
+                            return bothRunning.await(5, TimeUnit.SECONDS);
+                          }),
+                  submitters)
+              .thenCompose(result -> result));
+    }
+
+    for (CompletableFuture<Boolean> result : results) {
+      assertTrue(result.get(10, TimeUnit.SECONDS));
+    }
+    submitters.shutdown();
+  }
+
+  @Test
+  void testCapturesFailuresAndKeepsGoing() throws Exception {
+    DeviceMailboxes mailboxes = new DeviceMailboxes(0, 16);
+
+    CompletableFuture<String> failed =
+        mailboxes.submit(
+            "user",
+            "device",
+            () -> {
+              throw new Exception("deviceOffline");
+            });
+    CompletableFuture<String> next = mailboxes.submit("user", "device", () -> "ok");
+
+    CompletionException e = assertThrows(CompletionException.class, failed::join);
+    assertEquals("deviceOffline", e.getCause().getMessage());
+    assertEquals("ok", next.join());
+    assertEquals(0, mailboxes.size());
+  }
+
+  @Test
+  void testAsyncMutationHoldsMailboxUntilDone() throws Exception {
+    DeviceMailboxes mailboxes = new DeviceMailboxes(2, 4);
+    CompletableFuture<String> write = new CompletableFuture<>();
+    AtomicInteger ran = new AtomicInteger();
+
+    CompletableFuture<String> first = mailboxes.submitAsync("user", "device", () -> write);
+    CompletableFuture<Integer> second =
+        mailboxes.submit("user", "device", () -> ran.incrementAndGet());
+    CompletableFuture<Integer> other =
+        mailboxes.submit("user", "other", () -> ran.incrementAndGet());
+
+    assertEquals(1, (int) other.get(5, TimeUnit.SECONDS));
+    Thread.sleep(20);
+    assertFalse(second.isDone());
+    write.complete("written");
+
+    assertEquals("written", first.get(5, TimeUnit.SECONDS));
+    assertEquals(2, (int) second.get(5, TimeUnit.SECONDS));
+    for (int i = 0; i < 100 && mailboxes.pending() > 0; i++) {
+      Thread.sleep(5);
+    }
+    assertEquals(0, mailboxes.pending());
+  }
+}
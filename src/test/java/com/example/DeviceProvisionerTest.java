@@ -0,0 +1,136 @@
+/*
+ * Copyright 2019 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.io.StringReader;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+
+import org.junit.jupiter.api.Test;
+
+import com.google.api.core.ApiFuture;
+import com.google.api.core.ApiFutures;
+import com.google.gson.stream.JsonReader;
+
+class DeviceProvisionerTest {
+
+  private static DeviceProvisioner.Report provision(DeviceStore store, String body)
+      throws Exception {
+    return new DeviceProvisioner(new MyDataStore(store))
+        .provision(new JsonReader(new StringReader(body)));
+  }
+
+  @Test
+  void testCreatesDevicesFromArray() throws Exception {
+    DeviceStore store = new InMemoryDeviceStore();
+
+    DeviceProvisioner.Report report =
+        provision(
+            store,
+            "[{\"userId\":\"a\",\"data\":{\"deviceId\":\"1\",\"name\":\"light\"}},"
+                + "{\"userId\":\"b\",\"data\":{\"deviceId\":\"2\"}},"
+                + "{\"userId\":\"a\",\"data\":{\"deviceId\":\"3\"}}]");
+
+    assertNull(report.error);
+    assertEquals(3, report.succeeded);
+    assertEquals(0, report.failed);
+    assertEquals(2, store.getDevices("a").size());
+    assertEquals(1, store.getDevices("b").size());
+    assertEquals(2, report.users.size());
+  }
+
+  @Test
+  void testCreatesDevicesFromNewlineDelimitedJson() throws Exception {
+    DeviceStore store = new InMemoryDeviceStore();
+
+    DeviceProvisioner.Report report =
+        provision(
+            store,
+            "{\"userId\":\"a\",\"data\":{\"deviceId\":\"1\"}}\n"
+                + "{\"userId\":\"a\",\"data\":{\"deviceId\":\"2\"}}\n");
+
+    assertEquals(2, report.succeeded);
+    assertEquals(2, store.getDevices("a").size());
+  }
+
+  @Test
+  void testReportsEachDevice() throws Exception {
+    DeviceStore store =
+        new InMemoryDeviceStore() {
+          @Override
+          public Batch newBatch() {
+            Batch batch = super.newBatch();
+            return new Batch() {
+              @Override
+              public ApiFuture<?> addDevice(String userId, Map<String, Object> data) {
+                if ("broken".equals(data.get("deviceId"))) {
+                  return ApiFutures.immediateFailedFuture(new IllegalStateException("unavailable"));
+                }
+                return batch.addDevice(userId, data);
+              }
+
+              @Override
+              public ApiFuture<?> updateStates(
+                  String userId, String deviceId, Map<String, Object> states) {
+                return batch.updateStates(userId, deviceId, states);
+              }
+
+              @Override
+              public ApiFuture<?> deleteDevice(String userId, String deviceId) {
+                return batch.deleteDevice(userId, deviceId);
+              }
+
+              @Override
+              public void close() throws ExecutionException, InterruptedException {
+                batch.close();
+              }
+            };
+          }
+        };
+
+    DeviceProvisioner.Report report =
+        provision(
+            store,
+            "[{\"userId\":\"a\",\"data\":{\"deviceId\":\"1\"}},"
+                + "{\"userId\":\"a\",\"data\":{\"name\":\"no id\"}},"
+                + "{\"data\":{\"deviceId\":\"2\"}},"
+                + "{\"userId\":\"b\",\"data\":{\"deviceId\":\"broken\"}}]");
+
+    assertEquals(1, report.succeeded);
+    assertEquals(3, report.failed);
+    assertEquals("SUCCESS", report.devices.get(0).status);
+    assertEquals("missing data.deviceId", report.devices.get(1).error);
+    assertEquals("missing userId", report.devices.get(2).error);
+    assertEquals("unavailable", report.devices.get(3).error);
+    assertEquals(1, report.users.size());
+  }
+
+  @Test
+  void testWritesDevicesReadBeforeMalformedInput() throws Exception {
+    DeviceStore store = new InMemoryDeviceStore();
+
+    DeviceProvisioner.Report report =
+        provision(store, "[{\"userId\":\"a\",\"data\":{\"deviceId\":\"1\"}}, {\"userId\": ");
+
+    assertNotNull(report.error);
+    assertFalse(report.tooLarge);
+    assertEquals(1, report.succeeded);
+    assertEquals(1, store.getDevices("a").size());
+  }
+}
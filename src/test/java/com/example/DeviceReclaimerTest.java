@@ -0,0 +1,150 @@
+/*
+ * Copyright 2019 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.jupiter.api.Test;
+
+import com.google.actions.api.smarthome.ExecuteRequest;
+
+class DeviceReclaimerTest {
+  private static final String USER_ID = "user";
+
+  private static void addDevice(DeviceStore store, String deviceId, String roomHint)
+      throws Exception {
+    Map<String, Object> device = new HashMap<>();
+    device.put("deviceId", deviceId);
+    device.put("roomHint", roomHint);
+    store.addDevice(USER_ID, device);
+  }
+
+  private static DeviceStore countingBatches(AtomicInteger batches) {
+    return new InMemoryDeviceStore() {
+      @Override
+      public Batch newBatch() {
+        batches.incrementAndGet();
+        return super.newBatch();
+      }
+    };
+  }
+
+  @Test
+  void testDeletesRoomInChunks() throws Exception {
+    AtomicInteger batches = new AtomicInteger();
+    DeviceStore store = countingBatches(batches);
+    for (int i = 0; i < 5; i++) {
+      addDevice(store, "kitchen" + i, "Kitchen");
+    }
+    addDevice(store, "bedroom", "Bedroom");
+    DeviceReclaimer reclaimer = new DeviceReclaimer(new MyDataStore(store), 2);
+
+    DeviceReclaimer.Job job = reclaimer.deleteRoom(USER_ID, "Kitchen", null);
+    job.done.get(5, TimeUnit.SECONDS);
+
+    assertEquals("DONE", job.status);
+    assertEquals(5, job.total);
+    assertEquals(5, job.deleted);
+    assertEquals(3, batches.get());
+    assertEquals(1, store.getDevices(USER_ID).size());
+    assertSame(job, reclaimer.getJob(job.id));
+  }
+
+  @Test
+  void testDeletesListedAndAllDevices() throws Exception {
+    DeviceStore store = new InMemoryDeviceStore();
+    for (String deviceId : new String[] {"a", "b", "c"}) {
+      addDevice(store, deviceId, "Hall");
+    }
+    DeviceReclaimer reclaimer = new DeviceReclaimer(new MyDataStore(store), 500);
+
+    DeviceReclaimer.Job listed = reclaimer.deleteDevices(USER_ID, Arrays.asList("a", "b"), null);
+    listed.done.get(5, TimeUnit.SECONDS);
+    assertEquals(2, listed.deleted);
+    assertEquals(1, store.getDevices(USER_ID).size());
+
+    DeviceReclaimer.Job[] finished = new DeviceReclaimer.Job[1];
+    DeviceReclaimer.Job all = reclaimer.deleteAll(USER_ID, job -> finished[0] = job);
+    all.done.get(5, TimeUnit.SECONDS);
+    assertEquals(1, all.deleted);
+    assertTrue(store.getDevices(USER_ID).isEmpty());
+    assertSame(all, finished[0]);
+  }
+
+  @Test
+  void testWaitsForInFlightCommandOnDevice() throws Exception {
+    CountDownLatch executing = new CountDownLatch(1);
+    CountDownLatch release = new CountDownLatch(1);
+    List<String> events = Collections.synchronizedList(new ArrayList<>());
+    DeviceStore store =
+        new InMemoryDeviceStore() {
+          @Override
+          public Map<String, Object> execute(
+              String userId,
+              String deviceId,
+              ExecuteRequest.Inputs.Payload.Commands.Execution execution)
+              throws Exception {
+            executing.countDown();
+            release.await();
+            events.add("execute " + deviceId);
+            return Collections.emptyMap();
+          }
+
+          @Override
+          public void deleteDevice(String userId, String deviceId) {
+            events.add("delete " + deviceId);
+            super.deleteDevice(userId, deviceId);
+          }
+        };
+    addDevice(store, "a", "Hall");
+    MyDataStore database = new MyDataStore(store);
+    CompletableFuture<Map<String, Object>> command =
+        CompletableFuture.supplyAsync(
+            () -> {
+              try {
+                return database.execute(USER_ID, "a", null);
+              } catch (Exception e) {
+                throw new CompletionException(e);
+              }
+            });
+    assertTrue(executing.await(5, TimeUnit.SECONDS));
+
+    DeviceReclaimer.Job job =
+        new DeviceReclaimer(database, 500).deleteDevices(USER_ID, Arrays.asList("a"), null);
+    Thread.sleep(50);
+    assertFalse(job.done.isDone());
+    assertTrue(events.isEmpty());
+    release.countDown();
+
+    job.done.get(5, TimeUnit.SECONDS);
+    command.get(5, TimeUnit.SECONDS);
+    assertEquals(1, job.deleted);
+    assertEquals(Arrays.asList("execute a", "delete a"), events);
+  }
+}
@@ -0,0 +1,339 @@
+/*
+ * Copyright 2019 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import com.google.actions.api.smarthome.ExecuteRequest;
+import com.google.api.core.ApiFuture;
+import com.google.api.core.ApiFutures;
+import com.google.gson.Gson;
+
+class DeviceStoreTest {
+  private static final String USER_ID = "test-user-id";
+  private static final String DEVICE_ID = "test-device-id";
+  private static final String TURN_ON =
+      "{\"command\":\"action.devices.commands.OnOff\",\"params\":{\"on\":true}}";
+
+  static ExecuteRequest.Inputs.Payload.Commands.Execution execution(String json) {
+    return new Gson().fromJson(json, ExecuteRequest.Inputs.Payload.Commands.Execution.class);
+  }
+
+  static void seed(DeviceStore store) throws Exception {
+    Map<String, Object> user = new HashMap<>();
+    user.put("fakeAccessToken", "123access");
+    store.addUser(USER_ID, user);
+
+    Map<String, Object> states = new HashMap<>();
+    states.put("online", true);
+    states.put("on", false);
+    Map<String, Object> device = new HashMap<>();
+    device.put("deviceId", DEVICE_ID);
+    device.put("name", "light");
+    device.put("states", states);
+    store.addDevice(USER_ID, device);
+  }
+
+  @Test
+  void testResolvesUserFromBearerToken() throws Exception {
+    DeviceStore store = new InMemoryDeviceStore();
+    seed(store);
+
+    assertEquals(USER_ID, store.getUserId("Bearer 123access"));
+    assertThrows(IllegalStateException.class, () -> store.getUserId("Bearer unknown"));
+  }
+
+  @Test
+  void testExecuteUpdatesStoredState() throws Exception {
+    DeviceStore store = new InMemoryDeviceStore();
+    seed(store);
+
+    Map<String, Object> states = store.execute(USER_ID, DEVICE_ID, execution(TURN_ON));
+
+    assertEquals(true, states.get("on"));
+    assertEquals(true, store.getState(USER_ID, DEVICE_ID).get("on"));
+  }
+
+  @Test
+  void testExecuteWritesEachCommandOnce() throws Exception {
+    List<Map<String, Object>> writes = new ArrayList<>();
+    DeviceStore store =
+        new InMemoryDeviceStore() {
+          @Override
+          protected ApiFuture<?> updateFields(
+              String userId, String deviceId, Map<String, Object> fields) {
+            writes.add(fields);
+            return super.updateFields(userId, deviceId, fields);
+          }
+        };
+    seed(store);
+
+    store.execute(
+        USER_ID,
+        DEVICE_ID,
+        execution(
+            "{\"command\":\"action.devices.commands.SoftwareUpdate\",\"params\":{}}"));
+
+    assertEquals(1, writes.size());
+    assertEquals(false, writes.get(0).get("states.online"));
+    assertTrue(writes.get(0).containsKey("states.lastSoftwareUpdateUnixTimestampSec"));
+  }
+
+  @Test
+  void testFailedWriteIsTransientError() throws Exception {
+    DeviceStore store =
+        new InMemoryDeviceStore() {
+          @Override
+          protected ApiFuture<?> updateFields(
+              String userId, String deviceId, Map<String, Object> fields) {
+            return ApiFutures.immediateFailedFuture(new IllegalStateException("unavailable"));
+          }
+        };
+    seed(store);
+
+    Exception e =
+        assertThrows(Exception.class, () -> store.execute(USER_ID, DEVICE_ID, execution(TURN_ON)));
+
+    assertEquals("transientError", e.getMessage());
+    assertEquals(false, store.getState(USER_ID, DEVICE_ID).get("on"));
+  }
+
+  private static final String VOLUME_UP =
+      "{\"command\":\"action.devices.commands.volumeRelative\","
+          + "\"params\":{\"relativeSteps\":1}}";
+
+  /** Another writer sets currentVolume to 10 just before each of the first n conditional writes. */
+  static InMemoryDeviceStore racingStore(int n) {
+    return new InMemoryDeviceStore() {
+      int races;
+
+      @Override
+      protected ApiFuture<Boolean> updateFieldsIfUnchanged(
+          String userId, DeviceDocument device, Map<String, Object> fields) {
+        if (races++ < n) {
+          Map<String, Object> competing = Collections.singletonMap("states.currentVolume", 10);
+          updateFields(userId, device.getId(), competing);
+        }
+        return super.updateFieldsIfUnchanged(userId, device, fields);
+      }
+    };
+  }
+
+  static void seedVolume(DeviceStore store) throws Exception {
+    seed(store);
+    Map<String, Object> states = new HashMap<>(store.getState(USER_ID, DEVICE_ID));
+    states.put("currentVolume", 5);
+    store.updateDevice(USER_ID, DEVICE_ID, states, Collections.emptyMap());
+  }
+
+  @Test
+  void testRelativeCommandRetriesOnConcurrentChange() throws Exception {
+    InMemoryDeviceStore store = racingStore(1);
+    seedVolume(store);
+
+    Map<String, Object> states = store.execute(USER_ID, DEVICE_ID, execution(VOLUME_UP));
+
+    assertEquals(11, states.get("currentVolume"));
+    assertEquals(11, store.getState(USER_ID, DEVICE_ID).get("currentVolume"));
+    assertEquals(2, store.conditionalWrites());
+    assertEquals(1, store.writeConflicts());
+  }
+
+  @Test
+  void testAbsoluteCommandWritesUnconditionally() throws Exception {
+    InMemoryDeviceStore store = racingStore(Integer.MAX_VALUE);
+    seed(store);
+
+    store.execute(USER_ID, DEVICE_ID, execution(TURN_ON));
+
+    assertEquals(0, store.conditionalWrites());
+    assertEquals(true, store.getState(USER_ID, DEVICE_ID).get("on"));
+  }
+
+  @Test
+  void testPersistentConflictIsTransientError() throws Exception {
+    InMemoryDeviceStore store = racingStore(Integer.MAX_VALUE);
+    seedVolume(store);
+
+    Exception e =
+        assertThrows(
+            Exception.class, () -> store.execute(USER_ID, DEVICE_ID, execution(VOLUME_UP)));
+
+    assertEquals("transientError", e.getMessage());
+    assertEquals(1, store.writeConflictsExhausted());
+    assertEquals(10, store.getState(USER_ID, DEVICE_ID).get("currentVolume"));
+  }
+
+  @Test
+  void testGetStatesLeavesOutMissingDevices() throws Exception {
+    DeviceStore store = new InMemoryDeviceStore();
+    seed(store);
+
+    Map<String, Map<String, Object>> states =
+        store.getStates(USER_ID, Arrays.asList(DEVICE_ID, "missing-device-id"));
+
+    assertEquals(Collections.singleton(DEVICE_ID), states.keySet());
+    assertEquals(false, states.get(DEVICE_ID).get("on"));
+  }
+
+  @Test
+  void testReturnedStateIsACopy() throws Exception {
+    DeviceStore store = new InMemoryDeviceStore();
+    seed(store);
+
+    store.getState(USER_ID, DEVICE_ID).put("on", true);
+
+    assertEquals(false, store.getState(USER_ID, DEVICE_ID).get("on"));
+  }
+
+  @Test
+  void testUpdateDeviceRemovesClearedFields() throws Exception {
+    DeviceStore store = new InMemoryDeviceStore();
+    seed(store);
+
+    Map<String, String> params = new HashMap<>();
+    params.put("name", null);
+    params.put("nickname", "lamp");
+    store.updateDevice(USER_ID, DEVICE_ID, null, params);
+
+    DeviceDocument device = store.getDevices(USER_ID).get(0);
+    assertFalse(device.contains("name"));
+    assertEquals("lamp", device.get("nickname"));
+  }
+
+  @Test
+  void testUpdateDeviceWritesRequestedFieldsOnce() throws Exception {
+    List<Map<String, Object>> writes = new ArrayList<>();
+    DeviceStore store =
+        new InMemoryDeviceStore() {
+          @Override
+          protected ApiFuture<?> updateFields(
+              String userId, String deviceId, Map<String, Object> fields) {
+            writes.add(fields);
+            return super.updateFields(userId, deviceId, fields);
+          }
+        };
+    seed(store);
+    Map<String, Object> states = new HashMap<>();
+    states.put("online", true);
+    states.put("on", true);
+    Map<String, String> params = new HashMap<>();
+    params.put("name", "light");
+    params.put("nickname", "lamp");
+    params.put("errorCode", null);
+    params.put("localDeviceId", "local");
+
+    Set<String> changed = store.updateDevice(USER_ID, DEVICE_ID, states, params);
+
+    assertEquals(new HashSet<>(Arrays.asList("states", "nickname", "otherDeviceIds")), changed);
+    assertEquals(1, writes.size());
+    assertEquals(
+        new HashSet<>(
+            Arrays.asList("states", "name", "nickname", "errorCode", "otherDeviceIds")),
+        writes.get(0).keySet());
+    assertEquals(true, store.getState(USER_ID, DEVICE_ID).get("on"));
+  }
+
+  @Test
+  void testUpdateDeviceReportsNothingChangedButStillWrites() throws Exception {
+    List<Map<String, Object>> writes = new ArrayList<>();
+    DeviceStore store =
+        new InMemoryDeviceStore() {
+          @Override
+          protected ApiFuture<?> updateFields(
+              String userId, String deviceId, Map<String, Object> fields) {
+            writes.add(fields);
+            return super.updateFields(userId, deviceId, fields);
+          }
+        };
+    seed(store);
+    Map<String, String> params = new HashMap<>();
+    params.put("name", "light");
+    params.put("tfa", null);
+
+    Set<String> changed =
+        store.updateDevice(USER_ID, DEVICE_ID, store.getState(USER_ID, DEVICE_ID), params);
+
+    assertTrue(changed.isEmpty());
+    assertEquals(1, writes.size());
+    assertEquals(new HashSet<>(Arrays.asList("states", "name", "tfa")), writes.get(0).keySet());
+  }
+
+  @Test
+  void testUpdateDeviceWritesWithoutReadWhenNotAtHand() throws Exception {
+    List<Map<String, Object>> writes = new ArrayList<>();
+    DeviceStore store =
+        new InMemoryDeviceStore() {
+          @Override
+          protected DeviceDocument getLocalDevice(String userId, String deviceId) {
+            return null;
+          }
+
+          @Override
+          protected DeviceDocument getDevice(String userId, String deviceId) {
+            fail("updateDevice read " + deviceId);
+            return null;
+          }
+
+          @Override
+          protected ApiFuture<?> updateFields(
+              String userId, String deviceId, Map<String, Object> fields) {
+            writes.add(fields);
+            return super.updateFields(userId, deviceId, fields);
+          }
+        };
+    seed(store);
+    Map<String, String> params = new HashMap<>();
+    params.put("name", "light");
+
+    Set<String> changed =
+        store.updateDevice(USER_ID, DEVICE_ID, Collections.singletonMap("on", true), params);
+
+    assertEquals(new HashSet<>(Arrays.asList("states", "name")), changed);
+    assertEquals(1, writes.size());
+  }
+
+  @Test
+  void testFileStoreSurvivesReopen(@TempDir Path dir) throws Exception {
+    Path journal = dir.resolve("store.jsonl");
+    DeviceStore store = new FileDeviceStore(journal);
+    seed(store);
+    store.execute(USER_ID, DEVICE_ID, execution(TURN_ON));
+    Map<String, String> params = new HashMap<>();
+    params.put("name", null);
+    store.updateDevice(USER_ID, DEVICE_ID, null, params);
+
+    DeviceStore reopened = new FileDeviceStore(journal);
+
+    assertEquals(USER_ID, reopened.getUserId("Bearer 123access"));
+    assertEquals(true, reopened.getState(USER_ID, DEVICE_ID).get("on"));
+    assertFalse(reopened.getDevices(USER_ID).get(0).contains("name"));
+  }
+}
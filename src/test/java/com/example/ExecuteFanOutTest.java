@@ -0,0 +1,89 @@
+/*
+ * Copyright 2019 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.jupiter.api.Test;
+
+class ExecuteFanOutTest {
+
+  @Test
+  void testKeepsResultsInOrder() throws Exception {
+    ExecuteFanOut fanOut = new ExecuteFanOut(4, 4);
+    List<Callable<Integer>> tasks = new ArrayList<>();
+    for (int i = 0; i < 20; i++) {
+      int value = i;
+      tasks.add(
+          () -> {
+            Thread.sleep(20 - value);
+            return value;
+          });
+    }
+
+    List<CompletableFuture<Integer>> results = fanOut.invokeAll(tasks);
+
+    for (int i = 0; i < 20; i++) {
+      assertEquals(i, results.get(i).join());
+    }
+  }
+
+  @Test
+  void testBoundsConcurrencyPerRequest() throws Exception {
+    ExecuteFanOut fanOut = new ExecuteFanOut(8, 2);
+    AtomicInteger running = new AtomicInteger();
+    AtomicInteger maxRunning = new AtomicInteger();
+    List<Callable<Void>> tasks = new ArrayList<>();
+    for (int i = 0; i < 10; i++) {
+      tasks.add(
+          () -> {
+            maxRunning.accumulateAndGet(running.incrementAndGet(), Math::max);
+            Thread.sleep(10);
+            running.decrementAndGet();
+            return null;
+          });
+    }
+
+    fanOut.invokeAll(tasks);
+
+    assertTrue(maxRunning.get() <= 2);
+  }
+
+  @Test
+  void testCapturesFailures() throws Exception {
+    ExecuteFanOut fanOut = new ExecuteFanOut(2, 2);
+    List<Callable<String>> tasks = new ArrayList<>();
+    tasks.add(() -> "ok");
+    tasks.add(
+        () -> {
+          throw new Exception("deviceOffline");
+        });
+
+    List<CompletableFuture<String>> results = fanOut.invokeAll(tasks);
+
+    assertEquals("ok", results.get(0).join());
+    CompletionException e = assertThrows(CompletionException.class, results.get(1)::join);
+    assertEquals("deviceOffline", e.getCause().getMessage());
+  }
+}
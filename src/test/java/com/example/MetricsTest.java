@@ -0,0 +1,101 @@
+/*
+ * Copyright 2019 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.io.IOException;
+import java.io.StringWriter;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.jupiter.api.Test;
+
+class MetricsTest {
+
+  @Test
+  void testBucketBoundaries() {
+    assertEquals(0, LatencyHistogram.bucket(0));
+    assertEquals(0, LatencyHistogram.bucket(100_000));
+    assertEquals(1, LatencyHistogram.bucket(100_001));
+    assertEquals(1, LatencyHistogram.bucket(200_000));
+    assertEquals(2, LatencyHistogram.bucket(200_001));
+    assertEquals(LatencyHistogram.BUCKETS, LatencyHistogram.bucket(TimeUnit.MINUTES.toNanos(5)));
+  }
+
+  @Test
+  void testPercentiles() {
+    LatencyHistogram histogram = new LatencyHistogram();
+    for (int i = 0; i < 99; i++) {
+      histogram.record(TimeUnit.MICROSECONDS.toNanos(50));
+    }
+    histogram.record(TimeUnit.MILLISECONDS.toNanos(30));
+
+    assertEquals(100, histogram.count());
+    // Reported as the bound of the bucket, except where the largest recording is lower.
+    assertEquals(TimeUnit.MICROSECONDS.toNanos(100), histogram.percentileNanos(0.5));
+    assertEquals(TimeUnit.MICROSECONDS.toNanos(100), histogram.percentileNanos(0.99));
+    assertEquals(TimeUnit.MILLISECONDS.toNanos(30), histogram.percentileNanos(1.0));
+  }
+
+  @Test
+  void testWritesPrometheusText() throws IOException {
+    Metrics metrics = new Metrics();
+    metrics.intent("SYNC").record(TimeUnit.MILLISECONDS.toNanos(3));
+    metrics.intent("SYNC").record(TimeUnit.SECONDS.toNanos(120));
+    metrics.error("deviceOffline");
+    metrics.error("deviceOffline");
+    metrics.counter("smarthome_test_total", "Test counter.", () -> 2);
+    metrics.counter("smarthome_test_total", "Test counter.", () -> 3);
+
+    StringWriter out = new StringWriter();
+    metrics.write(out);
+    String text = out.toString();
+
+    String bucket = "smarthome_intent_latency_seconds_bucket{intent=\"SYNC\",";
+    assertTrue(text.contains("# TYPE smarthome_intent_latency_seconds histogram\n"));
+    assertTrue(text.contains(bucket + "le=\"0.0016\"} 0\n"));
+    assertTrue(text.contains(bucket + "le=\"0.0032\"} 1\n"));
+    assertTrue(text.contains(bucket + "le=\"+Inf\"} 2\n"));
+    assertTrue(text.contains("smarthome_intent_latency_seconds_count{intent=\"SYNC\"} 2\n"));
+    assertTrue(text.contains("smarthome_errors_total{error_code=\"deviceOffline\"} 2\n"));
+    assertTrue(text.contains("smarthome_test_total 5\n"));
+    assertFalse(text.contains("smarthome_command_latency_seconds"));
+  }
+
+  @Test
+  void testBoundsLabelValues() throws IOException {
+    Metrics metrics = new Metrics();
+    metrics.command("action.devices.commands.OnOff").record(1000);
+    metrics.command("action.devices.commands.SelfDestruct").record(1000);
+    metrics.command("action.devices.commands.Launch").record(1000);
+    metrics.error("pinNeeded");
+    metrics.error("java.lang.Double cannot be cast to java.lang.Integer");
+    metrics.error(null);
+
+    StringWriter out = new StringWriter();
+    metrics.write(out);
+    String text = out.toString();
+
+    String count = "smarthome_command_latency_seconds_count{command=";
+    assertTrue(text.contains(count + "\"action.devices.commands.OnOff\"} 1\n"));
+    assertTrue(text.contains(count + "\"other\"} 2\n"));
+    assertFalse(text.contains("SelfDestruct"));
+    assertEquals(1, metrics.errors("pinNeeded"));
+    assertEquals(2, metrics.errors("other"));
+    assertFalse(text.contains("Double"));
+  }
+}
@@ -0,0 +1,216 @@
+/*
+ * Copyright 2019 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.jupiter.api.Test;
+
+import com.google.home.graph.v1.HomeGraphApiServiceProto.ReportStateAndNotificationRequest;
+import com.google.protobuf.Struct;
+import com.google.protobuf.Value;
+
+class ReportStateBatcherTest {
+  private final List<ReportStateAndNotificationRequest> sent = new CopyOnWriteArrayList<>();
+
+  private static Map<String, Object> on(boolean on) {
+    return Collections.<String, Object>singletonMap("on", on);
+  }
+
+  private void awaitSent(int requests) throws InterruptedException {
+    for (int i = 0; i < 200 && sent.size() < requests; i++) {
+      Thread.sleep(5);
+    }
+    assertEquals(requests, sent.size());
+  }
+
+  private static Map<String, Value> devices(ReportStateAndNotificationRequest request) {
+    return request.getPayload().getDevices().getStates().getFieldsMap();
+  }
+
+  @Test
+  void testSendsFullBatchImmediately() throws Exception {
+    ReportStateBatcher batcher = new ReportStateBatcher(sent::add, 2, TimeUnit.HOURS.toMillis(1));
+
+    batcher.report("user", "light1", on(true));
+    Thread.sleep(20);
+    assertTrue(sent.isEmpty());
+    batcher.report("user", "light2", on(true));
+
+    awaitSent(1);
+    assertEquals("user", sent.get(0).getAgentUserId());
+    assertEquals(2, devices(sent.get(0)).size());
+  }
+
+  @Test
+  void testSendsPartialBatchAfterDelay() throws Exception {
+    ReportStateBatcher batcher = new ReportStateBatcher(sent::add, 50, 10);
+
+    batcher.report("user", "light1", on(true));
+
+    awaitSent(1);
+    assertEquals(1, devices(sent.get(0)).size());
+  }
+
+  @Test
+  void testReportAllSendsWithPendingReportsInFullBatches() throws Exception {
+    ReportStateBatcher batcher = new ReportStateBatcher(sent::add, 2, TimeUnit.HOURS.toMillis(1));
+    batcher.report("user", "light1", on(false));
+    Map<String, Map<String, Object>> states = new LinkedHashMap<>();
+    states.put("light1", on(true));
+    states.put("light2", on(true));
+    states.put("light3", on(true));
+
+    batcher.reportAll("user", states);
+
+    awaitSent(2);
+    assertEquals(2, devices(sent.get(0)).size() + devices(sent.get(1)).size() - 1);
+    for (ReportStateAndNotificationRequest request : sent) {
+      if (devices(request).containsKey("light1")) {
+        Struct light1 = devices(request).get("light1").getStructValue();
+        assertTrue(light1.getFieldsOrThrow("on").getBoolValue());
+      }
+    }
+    assertEquals(1, batcher.coalesced());
+  }
+
+  @Test
+  void testDiscardsReportsOfDeletedDevices() throws Exception {
+    ReportStateBatcher batcher = new ReportStateBatcher(sent::add, 50, TimeUnit.HOURS.toMillis(1));
+    batcher.report("user", "light1", on(true));
+    batcher.report("user", "light2", on(true));
+
+    batcher.discard("user", Collections.singletonList("light1"));
+    batcher.flushAll();
+
+    awaitSent(1);
+    assertEquals(Collections.singleton("light2"), devices(sent.get(0)).keySet());
+  }
+
+  @Test
+  void testKeepsLatestStatesOfDevice() throws Exception {
+    ReportStateBatcher batcher = new ReportStateBatcher(sent::add, 50, TimeUnit.HOURS.toMillis(1));
+
+    batcher.report("user", "light1", on(false));
+    batcher.report("user", "light1", on(true));
+    batcher.flushAll();
+
+    awaitSent(1);
+    Struct states = devices(sent.get(0)).get("light1").getStructValue();
+    assertTrue(states.getFieldsOrThrow("on").getBoolValue());
+    assertEquals(1, batcher.coalesced());
+  }
+
+  @Test
+  void testBatchesPerUser() throws Exception {
+    ReportStateBatcher batcher = new ReportStateBatcher(sent::add, 50, TimeUnit.HOURS.toMillis(1));
+
+    batcher.report("alice", "light1", on(true));
+    batcher.report("bob", "light1", on(true));
+    batcher.flushAll();
+
+    awaitSent(2);
+  }
+
+  @Test
+  void testDropsReportsBeyondPendingLimit() throws Exception {
+    ReportStateBatcher batcher =
+        new ReportStateBatcher(sent::add, 50, TimeUnit.HOURS.toMillis(1), 2, 1, 10);
+
+    batcher.report("user", "light1", on(true));
+    batcher.report("user", "light2", on(true));
+    batcher.report("user", "light3", on(true));
+
+    assertEquals(1, batcher.dropped());
+    assertEquals(2, batcher.queueDepth());
+    batcher.shutdown(1, TimeUnit.SECONDS);
+    assertEquals(2, batcher.sent());
+  }
+
+  @Test
+  void testReportingDoesNotWaitForHomeGraph() throws Exception {
+    CountDownLatch homeGraph = new CountDownLatch(1);
+    ReportStateBatcher batcher =
+        new ReportStateBatcher(
+            request -> {
+              try {
+                homeGraph.await();
+              } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+              }
+            },
+            1,
+            TimeUnit.HOURS.toMillis(1));
+
+    long start = System.nanoTime();
+    for (int i = 0; i < 10; i++) {
+      batcher.report("user", "light" + i, on(true));
+    }
+
+    assertTrue(System.nanoTime() - start < TimeUnit.SECONDS.toNanos(1));
+    homeGraph.countDown();
+    batcher.shutdown(1, TimeUnit.SECONDS);
+    assertEquals(10, batcher.sent());
+  }
+
+  @Test
+  void testSendsBatchesOfUserInOrder() throws Exception {
+    CountDownLatch homeGraph = new CountDownLatch(1);
+    ReportStateBatcher batcher =
+        new ReportStateBatcher(
+            request -> {
+              sent.add(request);
+              try {
+                homeGraph.await();
+              } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+              }
+            },
+            50,
+            TimeUnit.HOURS.toMillis(1),
+            100,
+            4,
+            10);
+
+    batcher.report("user", "light1", on(true));
+    batcher.flushAll();
+    awaitSent(1);
+    batcher.report("user", "light1", on(false));
+    batcher.flushAll();
+    batcher.report("user", "light1", on(true));
+    batcher.flushAll();
+    batcher.report("user", "light1", on(false));
+    batcher.flushAll();
+
+    Thread.sleep(50);
+    assertEquals(1, sent.size());
+    homeGraph.countDown();
+    batcher.shutdown(1, TimeUnit.SECONDS);
+    assertEquals(2, sent.size());
+    Struct last = devices(sent.get(1)).get("light1").getStructValue();
+    assertFalse(last.getFieldsOrThrow("on").getBoolValue());
+    assertEquals(2, batcher.coalesced());
+  }
+}
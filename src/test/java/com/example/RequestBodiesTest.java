@@ -0,0 +1,108 @@
+/*
+ * Copyright 2019 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.Mockito.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+
+import javax.servlet.ReadListener;
+import javax.servlet.ServletInputStream;
+import javax.servlet.http.HttpServletRequest;
+
+import org.junit.jupiter.api.Test;
+
+import com.google.gson.JsonObject;
+
+class RequestBodiesTest {
+
+  private static HttpServletRequest request(String body, long contentLength) throws IOException {
+    ByteArrayInputStream bytes = new ByteArrayInputStream(body.getBytes(StandardCharsets.UTF_8));
+    ServletInputStream in =
+        new ServletInputStream() {
+          @Override
+          public int read() {
+            return bytes.read();
+          }
+
+          @Override
+          public int read(byte[] b, int off, int len) {
+            return bytes.read(b, off, len);
+          }
+
+          @Override
+          public boolean isFinished() {
+            return bytes.available() == 0;
+          }
+
+          @Override
+          public boolean isReady() {
+            return true;
+          }
+
+          @Override
+          public void setReadListener(ReadListener listener) {}
+        };
+    HttpServletRequest req = mock(HttpServletRequest.class);
+    when(req.getInputStream()).thenReturn(in);
+    when(req.getContentLengthLong()).thenReturn(contentLength);
+    return req;
+  }
+
+  @Test
+  void testReadsJsonFromStream() throws IOException {
+    String body = "{\"userId\": \"user\", \"data\": {\"id\": \"light\"}}";
+
+    Map<?, ?> map = RequestBodies.readJson(request(body, -1), Map.class, 1024);
+    JsonObject json = RequestBodies.readJson(request(body, -1), JsonObject.class, 1024);
+
+    assertEquals("user", map.get("userId"));
+    assertEquals("light", json.getAsJsonObject("data").get("id").getAsString());
+  }
+
+  @Test
+  void testReadsStringLargerThanPooledBuffer() throws IOException {
+    StringBuilder body = new StringBuilder();
+    for (int i = 0; i < 20000; i++) {
+      body.append("\u00e9");
+    }
+
+    assertEquals(body.toString(), RequestBodies.readString(request(body.toString(), -1)));
+  }
+
+  @Test
+  void testRejectsDeclaredLengthOverLimit() throws IOException {
+    HttpServletRequest req = request("{}", 2048);
+
+    assertThrows(
+        RequestBodies.TooLargeException.class, () -> RequestBodies.readString(req, 1024));
+    verify(req, never()).getInputStream();
+  }
+
+  @Test
+  void testRejectsUndeclaredBodyOverLimit() throws IOException {
+    String body = "{\"padding\": \"" + new String(new char[2048]).replace('\0', 'x') + "\"}";
+
+    assertThrows(
+        RequestBodies.TooLargeException.class,
+        () -> RequestBodies.readJson(request(body, -1), JsonObject.class, 1024));
+  }
+}
@@ -0,0 +1,87 @@
+/*
+ * Copyright 2019 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.jupiter.api.Test;
+
+class RequestSyncSchedulerTest {
+  private final List<String> sent = new CopyOnWriteArrayList<>();
+
+  private void awaitSent(int calls) throws InterruptedException {
+    for (int i = 0; i < 400 && sent.size() < calls; i++) {
+      Thread.sleep(5);
+    }
+    assertEquals(calls, sent.size());
+  }
+
+  @Test
+  void testFoldsBurstIntoOneCall() throws Exception {
+    RequestSyncScheduler scheduler = new RequestSyncScheduler(sent::add, 50, 10000, 1, 0);
+
+    for (int i = 0; i < 200; i++) {
+      scheduler.request("user");
+    }
+    scheduler.request("other");
+
+    awaitSent(2);
+    Thread.sleep(100);
+    assertEquals(2, sent.size());
+    assertEquals(199, scheduler.coalesced());
+  }
+
+  @Test
+  void testSendsByMaxDelayDuringSteadyRequests() throws Exception {
+    RequestSyncScheduler scheduler = new RequestSyncScheduler(sent::add, 50, 100, 1, 0);
+
+    long end = System.currentTimeMillis() + 400;
+    while (System.currentTimeMillis() < end) {
+      scheduler.request("user");
+      Thread.sleep(10);
+    }
+
+    assertTrue(sent.size() >= 2, "sent " + sent.size());
+  }
+
+  @Test
+  void testRetriesFailedCalls() throws Exception {
+    AtomicInteger attempts = new AtomicInteger();
+    RequestSyncScheduler scheduler =
+        new RequestSyncScheduler(
+            userId -> {
+              if (attempts.incrementAndGet() < 3) {
+                throw new IllegalStateException("unavailable");
+              }
+              sent.add(userId);
+            },
+            0,
+            0,
+            3,
+            5);
+
+    scheduler.request("user");
+
+    awaitSent(1);
+    assertEquals(2, scheduler.retried());
+    assertEquals(0, scheduler.failed());
+  }
+}
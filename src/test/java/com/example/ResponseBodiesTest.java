@@ -0,0 +1,125 @@
+/*
+ * Copyright 2019 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.Mockito.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.zip.GZIPInputStream;
+
+import javax.servlet.ServletOutputStream;
+import javax.servlet.WriteListener;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.junit.jupiter.api.Test;
+
+class ResponseBodiesTest {
+
+  private static HttpServletResponse response(ByteArrayOutputStream bytes) throws IOException {
+    ServletOutputStream out =
+        new ServletOutputStream() {
+          @Override
+          public void write(int b) {
+            bytes.write(b);
+          }
+
+          @Override
+          public void write(byte[] b, int off, int len) {
+            bytes.write(b, off, len);
+          }
+
+          @Override
+          public boolean isReady() {
+            return true;
+          }
+
+          @Override
+          public void setWriteListener(WriteListener listener) {}
+        };
+    HttpServletResponse res = mock(HttpServletResponse.class);
+    when(res.getOutputStream()).thenReturn(out);
+    return res;
+  }
+
+  private static String json(int devices) {
+    StringBuilder json = new StringBuilder("{\"devices\":[");
+    for (int i = 0; i < devices; i++) {
+      json.append(i > 0 ? "," : "").append("{\"id\":\"light-").append(i).append("\u00e9\"}");
+    }
+    return json.append("]}").toString();
+  }
+
+  @Test
+  void testWritesLargeResponseInChunks() throws IOException {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    HttpServletResponse res = response(bytes);
+    String json = json(2000);
+
+    ResponseBodies.writeJson(res, json, false, 1024);
+
+    assertEquals(json, new String(bytes.toByteArray(), StandardCharsets.UTF_8));
+    verify(res, never()).setHeader(eq("Content-Encoding"), anyString());
+  }
+
+  @Test
+  void testGzipsLargeResponse() throws IOException {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    HttpServletResponse res = response(bytes);
+    String json = json(2000);
+
+    ResponseBodies.writeJson(res, json, true, 1024);
+
+    verify(res).setHeader("Content-Encoding", "gzip");
+    ByteArrayOutputStream unzipped = new ByteArrayOutputStream();
+    try (InputStream in = new GZIPInputStream(new ByteArrayInputStream(bytes.toByteArray()))) {
+      byte[] buffer = new byte[4096];
+      int read;
+      while ((read = in.read(buffer)) != -1) {
+        unzipped.write(buffer, 0, read);
+      }
+    }
+    assertEquals(json, new String(unzipped.toByteArray(), StandardCharsets.UTF_8));
+  }
+
+  @Test
+  void testDoesNotGzipSmallResponse() throws IOException {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    HttpServletResponse res = response(bytes);
+
+    ResponseBodies.writeJson(res, json(1), true, 1024);
+
+    assertEquals(json(1), new String(bytes.toByteArray(), StandardCharsets.UTF_8));
+    verify(res, never()).setHeader(eq("Content-Encoding"), anyString());
+  }
+
+  @Test
+  void testAcceptsGzip() {
+    HttpServletRequest req = mock(HttpServletRequest.class);
+
+    assertFalse(ResponseBodies.acceptsGzip(req));
+    when(req.getHeader("Accept-Encoding")).thenReturn("deflate, gzip;q=1.0");
+    assertTrue(ResponseBodies.acceptsGzip(req));
+    when(req.getHeader("Accept-Encoding")).thenReturn("gzip;q=0, br");
+    assertFalse(ResponseBodies.acceptsGzip(req));
+  }
+}
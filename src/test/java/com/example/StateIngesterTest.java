@@ -0,0 +1,159 @@
+/*
+ * Copyright 2019 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.jupiter.api.Test;
+
+import com.google.actions.api.smarthome.ExecuteRequest;
+import com.google.api.core.ApiFuture;
+import com.google.gson.stream.JsonReader;
+
+class StateIngesterTest {
+
+  private static StateIngester.Report ingest(DeviceStore store, String body) throws Exception {
+    return new StateIngester(new MyDataStore(store)).ingest(new JsonReader(new StringReader(body)));
+  }
+
+  @Test
+  void testAppliesLatestUpdateOfEachDevice() throws Exception {
+    List<String> writes = new ArrayList<>();
+    DeviceStore store =
+        new InMemoryDeviceStore() {
+          @Override
+          protected ApiFuture<?> updateFields(
+              String userId, String deviceId, Map<String, Object> fields) {
+            writes.add(deviceId);
+            return super.updateFields(userId, deviceId, fields);
+          }
+        };
+    DeviceStoreTest.seed(store);
+
+    StateIngester.Report report =
+        ingest(
+            store,
+            "{\"userId\":\"test-user-id\",\"deviceId\":\"test-device-id\","
+                + "\"states\":{\"on\":true}}\n"
+                + "{\"userId\":\"test-user-id\",\"deviceId\":\"test-device-id\","
+                + "\"states\":{\"on\":false,\"brightness\":5}}\n");
+
+    assertNull(report.error);
+    assertEquals(2, report.accepted);
+    assertEquals(1, writes.size());
+    Map<String, Object> states = store.getState("test-user-id", "test-device-id");
+    assertEquals(false, states.get("on"));
+    assertEquals(5.0, states.get("brightness"));
+    assertEquals(states, report.written.get("test-user-id").get("test-device-id"));
+  }
+
+  @Test
+  void testReportsFailuresByPosition() throws Exception {
+    DeviceStore store = new InMemoryDeviceStore();
+    DeviceStoreTest.seed(store);
+
+    StateIngester.Report report =
+        ingest(
+            store,
+            "[{\"userId\":\"test-user-id\",\"deviceId\":\"test-device-id\",\"states\":{}},"
+                + "{\"userId\":\"test-user-id\",\"states\":{}},"
+                + "{\"userId\":\"test-user-id\",\"deviceId\":\"test-device-id\"}]");
+
+    assertEquals(1, report.accepted);
+    assertEquals(2, report.failed);
+    assertEquals(1, report.failures.get(0).index);
+    assertEquals("missing deviceId", report.failures.get(0).error);
+    assertEquals(2, report.failures.get(1).index);
+    assertEquals("missing states", report.failures.get(1).error);
+  }
+
+  @Test
+  void testWaitsForInFlightCommandOnDevice() throws Exception {
+    CountDownLatch executing = new CountDownLatch(1);
+    CountDownLatch release = new CountDownLatch(1);
+    List<String> events = Collections.synchronizedList(new ArrayList<>());
+    DeviceStore store =
+        new InMemoryDeviceStore() {
+          @Override
+          public Map<String, Object> execute(
+              String userId,
+              String deviceId,
+              ExecuteRequest.Inputs.Payload.Commands.Execution execution)
+              throws Exception {
+            executing.countDown();
+            release.await();
+            events.add("execute");
+            return Collections.emptyMap();
+          }
+
+          @Override
+          protected ApiFuture<?> updateFields(
+              String userId, String deviceId, Map<String, Object> fields) {
+            events.add("update");
+            return super.updateFields(userId, deviceId, fields);
+          }
+        };
+    DeviceStoreTest.seed(store);
+    events.clear();
+    MyDataStore database = new MyDataStore(store);
+
+    CompletableFuture<Map<String, Object>> command =
+        CompletableFuture.supplyAsync(
+            () -> {
+              try {
+                return database.execute("test-user-id", "test-device-id", null);
+              } catch (Exception e) {
+                throw new CompletionException(e);
+              }
+            });
+    assertTrue(executing.await(5, TimeUnit.SECONDS));
+    CompletableFuture<StateIngester.Report> ingest =
+        CompletableFuture.supplyAsync(
+            () -> {
+              try {
+                return new StateIngester(database)
+                    .ingest(
+                        new JsonReader(
+                            new StringReader(
+                                "{\"userId\":\"test-user-id\",\"deviceId\":\"test-device-id\","
+                                    + "\"states\":{\"on\":true}}")));
+              } catch (InterruptedException e) {
+                throw new CompletionException(e);
+              }
+            });
+
+    Thread.sleep(50);
+    assertFalse(ingest.isDone());
+    assertTrue(events.isEmpty());
+    release.countDown();
+
+    assertEquals(1, ingest.get(5, TimeUnit.SECONDS).accepted);
+    command.get(5, TimeUnit.SECONDS);
+    assertEquals(Arrays.asList("execute", "update"), events);
+  }
+}
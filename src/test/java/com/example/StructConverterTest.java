@@ -0,0 +1,79 @@
+/*
+ * Copyright 2019 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.junit.jupiter.api.Test;
+
+import com.google.gson.Gson;
+import com.google.protobuf.Struct;
+import com.google.protobuf.util.JsonFormat;
+
+class StructConverterTest {
+
+  private static Map<String, Object> states() {
+    Map<String, Object> color = new HashMap<>();
+    color.put("spectrumRgb", 16711680);
+    Map<String, Object> mode = new HashMap<>();
+    mode.put("name", "speed");
+    mode.put("level", null);
+    Map<String, Object> states = new HashMap<>();
+    states.put("on", true);
+    states.put("brightness", 42);
+    states.put("color", color);
+    states.put("currentModeSettings", mode);
+    states.put("openState", Arrays.asList(mode, "up", 3.5));
+    states.put("nickname", null);
+    return states;
+  }
+
+  /** The conversion this class replaces: Gson to JSON text, then parsed by JsonFormat. */
+  private static Struct viaJson(Object value) throws Exception {
+    Struct.Builder struct = Struct.newBuilder();
+    JsonFormat.parser().merge(new Gson().toJson(value), struct);
+    return struct.build();
+  }
+
+  @Test
+  void testMatchesJsonRoundTrip() throws Exception {
+    assertEquals(viaJson(states()), StructConverter.toStruct(states()));
+  }
+
+  @Test
+  void testRenamesSpectrumRgbInStates() {
+    Struct states = StructConverter.toStateStruct(states());
+
+    Struct color = states.getFieldsOrThrow("color").getStructValue();
+    assertEquals(16711680, color.getFieldsOrThrow("spectrumRGB").getNumberValue());
+    assertFalse(color.containsFields("spectrumRgb"));
+  }
+
+  @Test
+  void testConvertsArrays() throws Exception {
+    Map<String, Object> item = new HashMap<>();
+    item.put("itemName", "water");
+    Map<String, Object> states = new HashMap<>();
+    states.put("dispenseItems", new Map[] {item});
+
+    assertEquals(viaJson(states), StructConverter.toStruct(states));
+  }
+}
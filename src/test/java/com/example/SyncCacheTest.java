@@ -0,0 +1,94 @@
+/*
+ * Copyright 2019 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.jupiter.api.Test;
+
+import com.google.actions.api.smarthome.SyncResponse;
+
+class SyncCacheTest {
+
+  private static SyncResponse.Payload.Device[] devices(int count) {
+    return new SyncResponse.Payload.Device[count];
+  }
+
+  @Test
+  void testServesCurrentVersion() {
+    SyncCache cache = new SyncCache(10, 1, TimeUnit.MINUTES);
+
+    assertNull(cache.get("user"));
+    cache.put("user", cache.version("user"), devices(2));
+
+    assertEquals(2, cache.get("user").length);
+    assertEquals(1, cache.hits());
+    assertEquals(1, cache.misses());
+  }
+
+  @Test
+  void testInvalidateDropsEntry() {
+    SyncCache cache = new SyncCache(10, 1, TimeUnit.MINUTES);
+    cache.put("user", cache.version("user"), devices(2));
+
+    cache.invalidate("user");
+
+    assertNull(cache.get("user"));
+  }
+
+  @Test
+  void testDoesNotCacheReadThatRacedWithChange() {
+    SyncCache cache = new SyncCache(10, 1, TimeUnit.MINUTES);
+    long version = cache.version("user");
+    cache.invalidate("user");
+
+    cache.put("user", version, devices(2));
+
+    assertNull(cache.get("user"));
+  }
+
+  @Test
+  void testEvictsLeastRecentlyUsedUser() {
+    SyncCache cache = new SyncCache(2, 1, TimeUnit.MINUTES);
+    cache.put("alice", cache.version("alice"), devices(1));
+    cache.put("bob", cache.version("bob"), devices(1));
+    cache.get("alice");
+    cache.put("carol", cache.version("carol"), devices(1));
+
+    assertNotNull(cache.get("alice"));
+    assertNull(cache.get("bob"));
+    assertEquals(1, cache.evictions());
+  }
+
+  @Test
+  void testDeviceChangesInvalidateSync() throws Exception {
+    MyDataStore database = new MyDataStore(new InMemoryDeviceStore());
+    DeviceStoreTest.seed(database.getStore());
+    SyncCache cache = database.getSyncCache();
+    cache.put("test-user-id", cache.version("test-user-id"), devices(1));
+
+    Map<String, String> params = new HashMap<>();
+    params.put("nickname", "lamp");
+    database.updateDevice("test-user-id", "test-device-id", null, params);
+
+    assertNull(cache.get("test-user-id"));
+  }
+}
@@ -0,0 +1,105 @@
+/*
+ * Copyright 2019 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.jupiter.api.Test;
+
+class TokenCacheTest {
+  private final AtomicInteger lookups = new AtomicInteger();
+
+  private String lookup(String accessToken) {
+    lookups.incrementAndGet();
+    return accessToken.equals("123access") ? "test-user-id" : null;
+  }
+
+  @Test
+  void testCachesKnownTokens() throws Exception {
+    TokenCache cache = new TokenCache(10, 1, 1, TimeUnit.MINUTES);
+
+    assertEquals("test-user-id", cache.get("123access", this::lookup));
+    assertEquals("test-user-id", cache.get("123access", this::lookup));
+
+    assertEquals(1, lookups.get());
+    assertEquals(1, cache.hits());
+    assertEquals(1, cache.misses());
+  }
+
+  @Test
+  void testCachesUnknownTokens() throws Exception {
+    TokenCache cache = new TokenCache(10, 1, 1, TimeUnit.MINUTES);
+
+    assertNull(cache.get("bad", this::lookup));
+    assertNull(cache.get("bad", this::lookup));
+
+    assertEquals(1, lookups.get());
+    assertEquals(1, cache.negativeHits());
+  }
+
+  @Test
+  void testUnknownTokensExpireSooner() throws Exception {
+    TokenCache cache = new TokenCache(10, 1, 0, TimeUnit.MINUTES);
+
+    cache.get("123access", this::lookup);
+    cache.get("bad", this::lookup);
+    cache.get("123access", this::lookup);
+    cache.get("bad", this::lookup);
+
+    assertEquals(3, lookups.get());
+  }
+
+  @Test
+  void testInvalidate() throws Exception {
+    TokenCache cache = new TokenCache(10, 1, 1, TimeUnit.MINUTES);
+    cache.get("123access", this::lookup);
+
+    cache.invalidate("123access");
+    cache.get("123access", this::lookup);
+    cache.invalidateUser("test-user-id");
+    cache.get("123access", this::lookup);
+
+    assertEquals(3, lookups.get());
+  }
+
+  @Test
+  void testStaysBounded() throws Exception {
+    TokenCache cache = new TokenCache(10, 1, 1, TimeUnit.MINUTES);
+
+    for (int i = 0; i < 100; i++) {
+      cache.get("bad" + i, this::lookup);
+    }
+
+    assertTrue(cache.size() <= 10);
+    assertTrue(cache.evictions() > 0);
+  }
+
+  @Test
+  void testDeletingUserInvalidatesItsTokens() throws Exception {
+    InMemoryDeviceStore store = new InMemoryDeviceStore();
+    DeviceStoreTest.seed(store);
+    store.getUserId("Bearer 123access");
+
+    store.deleteUser("test-user-id");
+
+    assertThrows(IllegalStateException.class, () -> store.getUserId("Bearer 123access"));
+    assertEquals(0, store.getTokenCache().hits());
+  }
+}